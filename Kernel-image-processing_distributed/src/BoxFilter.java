@@ -0,0 +1,80 @@
+public class BoxFilter {
+
+    // Uniform (2 * radius + 1)^2 kernel with every tap equal to weight, edges wrap around the image.
+    // Running sums make the cost per pixel independent of the radius.
+    public static void convolve(int[] src, int[] dst, int width, int height, int radius, float weight,
+            float multiplier, int x0, int y0, int x1, int y1) {
+
+        int size = 2 * radius + 1;
+        int regionWidth = x1 - x0;
+        int rowCount = y1 - y0 + size - 1;
+
+        int[] columns = new int[regionWidth + size - 1];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = Math.floorMod(x0 - radius + c, width);
+        }
+
+        // Horizontal window sums of every source row the vertical pass reads
+        int[] red = new int[rowCount * regionWidth];
+        int[] green = new int[rowCount * regionWidth];
+        int[] blue = new int[rowCount * regionWidth];
+
+        for (int r = 0; r < rowCount; r++) {
+            int row = Math.floorMod(y0 - radius + r, height) * width;
+            int t = r * regionWidth;
+
+            int sumRed = 0, sumGreen = 0, sumBlue = 0;
+            for (int c = 0; c < size - 1; c++) {
+                int rgb = src[row + columns[c]];
+                sumRed += (rgb >> 16) & 0xff;
+                sumGreen += (rgb >> 8) & 0xff;
+                sumBlue += rgb & 0xff;
+            }
+            for (int i = 0; i < regionWidth; i++) {
+                int in = src[row + columns[i + size - 1]];
+                sumRed += (in >> 16) & 0xff;
+                sumGreen += (in >> 8) & 0xff;
+                sumBlue += in & 0xff;
+
+                red[t + i] = sumRed;
+                green[t + i] = sumGreen;
+                blue[t + i] = sumBlue;
+
+                int out = src[row + columns[i]];
+                sumRed -= (out >> 16) & 0xff;
+                sumGreen -= (out >> 8) & 0xff;
+                sumBlue -= out & 0xff;
+            }
+        }
+
+        // Vertical window sums, kept per column and slid down one row at a time
+        int[] columnRed = new int[regionWidth];
+        int[] columnGreen = new int[regionWidth];
+        int[] columnBlue = new int[regionWidth];
+        for (int r = 0; r < size - 1; r++) {
+            addRow(red, green, blue, r * regionWidth, columnRed, columnGreen, columnBlue, 1);
+        }
+
+        for (int j = y0; j < y1; j++) {
+            int r = j - y0;
+            addRow(red, green, blue, (r + size - 1) * regionWidth, columnRed, columnGreen, columnBlue, 1);
+
+            int out = j * width + x0;
+            for (int i = 0; i < regionWidth; i++) {
+                dst[out + i] = Convolution.pixel(src[out + i], columnRed[i] * weight, columnGreen[i] * weight,
+                        columnBlue[i] * weight, multiplier);
+            }
+
+            addRow(red, green, blue, r * regionWidth, columnRed, columnGreen, columnBlue, -1);
+        }
+    }
+
+    private static void addRow(int[] red, int[] green, int[] blue, int offset, int[] columnRed, int[] columnGreen,
+            int[] columnBlue, int sign) {
+        for (int i = 0; i < columnRed.length; i++) {
+            columnRed[i] += sign * red[offset + i];
+            columnGreen[i] += sign * green[offset + i];
+            columnBlue[i] += sign * blue[offset + i];
+        }
+    }
+}
@@ -1,22 +1,37 @@
 
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+
 import mpi.*;
 
 public class DistributedLauncher {
+
+    private static final String CACHE_DIRECTORY = "src/Temp/cache";
+
     public static void main(String[] args) throws Exception {
         MPI.Init(args);
         int rank = MPI.COMM_WORLD.Rank();
 
         
         // Robust argument extraction: scan for a valid pair (imageNumber, kernelType)
-        String[] argArray = new String[2];
+        // Box blur (kernel 5) takes an optional radius after the kernel number, any
+        // registered kernel (built in or from -Dkernels=<file>) can be given by name
+        String[] argArray = new String[3];
         if (rank == 0) {
             boolean found = false;
             for (int i = 0; i < args.length - 1; i++) {
-                if (args[i].matches("^[0-9]$") && args[i + 1].matches("[1-4]")) {
+                if (args[i].matches("^[0-9]$")
+                        && (args[i + 1].matches("[1-5]") || Kernels.get(args[i + 1]) != null)) {
                     argArray[0] = args[i];
                     argArray[1] = args[i + 1];
+                    argArray[2] = "1";
                     found = true;
+                    // Skip the radius so it is not read as the start of another pair
+                    if (args[i + 1].equals("5") && i + 2 < args.length && args[i + 2].matches("^[0-9]+$")) {
+                        argArray[2] = args[i + 2];
+                        i += 2;
+                    }
 
                 }
             }
@@ -24,9 +39,22 @@ public class DistributedLauncher {
                 System.out.println("No valid args found, using defaults: image 1, kernel 1");
                 argArray[0] = "1";
                 argArray[1] = "1";
+                argArray[2] = "1";
+            }
+        }
+        MPI.COMM_WORLD.Bcast(argArray, 0, 3, MPI.OBJECT, 0);
+
+        // "farm" anywhere in the arguments switches to dynamic task-farm scheduling,
+        // "cache" reuses results of earlier runs stored under src/Temp/cache
+        boolean[] taskFarm = new boolean[1];
+        boolean useCache = false;
+        if (rank == 0) {
+            for (String arg : args) {
+                taskFarm[0] |= arg.equals("farm");
+                useCache |= arg.equals("cache");
             }
         }
-        MPI.COMM_WORLD.Bcast(argArray, 0, 2, MPI.OBJECT, 0);
+        MPI.COMM_WORLD.Bcast(taskFarm, 0, 1, MPI.BOOLEAN, 0);
         
 
         // Image selection
@@ -72,16 +100,19 @@ public class DistributedLauncher {
                 System.exit(1);
                 return;
         }
-        // Kernel selection
-        int kernelType = Integer.parseInt(argArray[1]);
-        float[][] kernelMatrix = getKernel(kernelType);
-        float multiplier = 1.0f;
-        if (kernelType == 3) { // blur
-            multiplier = 1.0f / 9.0f;
+        // Kernel selection on the master, workers get the matrix even if their registry lacks it
+        Object[] kernel = new Object[2];
+        if (rank == 0) {
+            kernel[0] = getKernel(argArray[1], Integer.parseInt(argArray[2]));
+            kernel[1] = getMultiplier(argArray[1], (float[][]) kernel[0]);
         }
+        MPI.COMM_WORLD.Bcast(kernel, 0, 2, MPI.OBJECT, 0);
+        float[][] kernelMatrix = (float[][]) kernel[0];
+        float multiplier = (Float) kernel[1];
         if (kernelMatrix == null) {
             if (rank == 0)
-                System.out.println("Invalid kernel type. Valid options: 1=edge, 2=sharpen, 3=blur, 4=emboss");
+                System.out.println(
+                        "Invalid kernel type. Valid options: 1=edge, 2=sharpen, 3=blur, 4=emboss, 5=box blur <radius>");
             try {
                 MPI.Finalize();
             } catch (Exception e) {
@@ -89,15 +120,35 @@ public class DistributedLauncher {
             System.exit(1);
             return;
         }
-        // Time the distributed convolution
-        long start = 0, end = 0;
-        if (rank == 0)
-            start = System.currentTimeMillis();
-        distributed.convolution(imagePath, kernelMatrix, multiplier);
-        if (rank == 0) {
-            end = System.currentTimeMillis();
-            System.out.println("Distributed convolution time: " + (end - start) + " ms");
-            System.out.println("Result saved to src/Temp/temp.jpg");
+        // On a hit the master writes the stored result and the workers stop right away
+        ResultCache cache = null;
+        String key = null;
+        boolean[] cached = new boolean[1];
+        if (rank == 0 && useCache) {
+            cache = new ResultCache(0, new File(CACHE_DIRECTORY));
+            key = ResultCache.key(new File(imagePath), kernelMatrix, multiplier);
+            BufferedImage result = cache.get(key);
+            if (result != null) {
+                File outputfile = OutputSink.getDefault().write(result, new Metrics("cache")).get();
+                if (outputfile != null) {
+                    System.out.println("Cached result saved to " + outputfile);
+                }
+                cached[0] = true;
+            }
+        }
+        MPI.COMM_WORLD.Bcast(cached, 0, 1, MPI.BOOLEAN, 0);
+        if (cached[0]) {
+            try {
+                MPI.Finalize();
+            } catch (Exception e) {
+            }
+            return;
+        }
+
+        // The master prints the timing of every phase and rank itself
+        distributed.convolution(imagePath, kernelMatrix, multiplier, taskFarm[0]);
+        if (cache != null && distributed.resultImage != null) {
+            cache.put(key, distributed.resultImage);
         }
         try {
             MPI.Finalize();
@@ -105,18 +156,22 @@ public class DistributedLauncher {
         }
     }
 
-    private static float[][] getKernel(int kernelType) {
-        switch (kernelType) {
-            case 1:
-                return Kernels.edge_detection;
-            case 2:
-                return Kernels.sharpen;
-            case 3:
-                return Kernels.blur;
-            case 4:
-                return Kernels.emboss;
-            default:
-                return Kernels.edge_detection;
+    // 1-4 are the built-in kernels in registration order, 5 the box blur, otherwise a registered name
+    private static float[][] getKernel(String kernelType, int radius) {
+        if (kernelType.equals("5")) {
+            return Kernels.box(Math.min(Math.max(radius, 1), 50));
+        }
+        return Kernels.getKernelMatrix(kernelName(kernelType));
+    }
+
+    private static float getMultiplier(String kernelType, float[][] kernelMatrix) {
+        if (kernelType.equals("5")) { // box blur, mean of the whole window
+            return 1.0f / (kernelMatrix.length * kernelMatrix.length);
         }
+        return Kernels.getMultiplier(kernelName(kernelType));
+    }
+
+    private static String kernelName(String kernelType) {
+        return kernelType.matches("[1-4]") ? Kernels.names().get(Integer.parseInt(kernelType) - 1) : kernelType;
     }
 }
\ No newline at end of file
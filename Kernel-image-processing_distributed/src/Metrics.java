@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Wall time per phase of one run (or of one MPI rank), measured with System.nanoTime.
+// Exported as JSON and in the Prometheus text format next to the result image.
+public class Metrics {
+
+    // Fixed order, also the layout of the long[] a worker rank sends to the master
+    public static final String[] PHASES = { "decode", "unpack", "serialize", "send", "receive", "compute",
+            "reassemble", "pack", "encode" };
+
+    public static final String OUTPUT_PATH = "src/Temp/metrics";
+
+    // Last finished run, shown by the GUI
+    private static volatile Metrics last;
+
+    private final String mode;
+    private final int rank;
+    private final Map<String, Long> nanos = new LinkedHashMap<>();
+    private long pixels;
+
+    public Metrics(String mode) {
+        this(mode, 0);
+    }
+
+    public Metrics(String mode, int rank) {
+        this.mode = mode;
+        this.rank = rank;
+        for (String phase : PHASES) {
+            nanos.put(phase, 0L);
+        }
+    }
+
+    public static Metrics getLast() {
+        return last;
+    }
+
+    public static void setLast(Metrics metrics) {
+        last = metrics;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    // Adds the time since start to the phase and returns the current time, so phases chain:
+    // t = metrics.record("decode", t);
+    public long record(String phase, long start) {
+        long now = System.nanoTime();
+        add(phase, now - start);
+        return now;
+    }
+
+    public synchronized void add(String phase, long elapsedNanos) {
+        nanos.merge(phase, elapsedNanos, Long::sum);
+    }
+
+    public synchronized long get(String phase) {
+        return nanos.getOrDefault(phase, 0L);
+    }
+
+    public synchronized void addPixels(long count) {
+        pixels += count;
+    }
+
+    public synchronized long getPixels() {
+        return pixels;
+    }
+
+    public synchronized long total() {
+        long total = 0;
+        for (long value : nanos.values()) {
+            total += value;
+        }
+        return total;
+    }
+
+    // Convolution throughput, over the compute phase only
+    public synchronized double megapixelsPerSecond() {
+        long compute = nanos.get("compute");
+        return compute == 0 ? 0 : pixels * 1000.0 / compute;
+    }
+
+    public synchronized long[] toArray() {
+        long[] values = new long[PHASES.length + 1];
+        for (int i = 0; i < PHASES.length; i++) {
+            values[i] = nanos.get(PHASES[i]);
+        }
+        values[PHASES.length] = pixels;
+        return values;
+    }
+
+    public static Metrics fromArray(String mode, int rank, long[] values) {
+        Metrics metrics = new Metrics(mode, rank);
+        for (int i = 0; i < PHASES.length; i++) {
+            metrics.nanos.put(PHASES[i], values[i]);
+        }
+        metrics.pixels = values[PHASES.length];
+        return metrics;
+    }
+
+    // One line per phase that took any time
+    public synchronized void print() {
+        String prefix = rank > 0 ? "Rank " + rank + ": " : "";
+        for (Map.Entry<String, Long> phase : nanos.entrySet()) {
+            if (phase.getValue() > 0) {
+                System.out.printf(Locale.ROOT, "%s%-10s %9.2f ms%n", prefix, phase.getKey(), phase.getValue() / 1e6);
+            }
+        }
+        if (nanos.get("compute") > 0) {
+            System.out.printf(Locale.ROOT, "%s%-10s %9.2f MPix/s%n", prefix, "throughput", megapixelsPerSecond());
+        }
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"mode\":\"").append(mode).append("\",\"rank\":").append(rank)
+                .append(",\"pixels\":").append(pixels).append(",\"phasesNanos\":{");
+        String separator = "";
+        for (Map.Entry<String, Long> phase : nanos.entrySet()) {
+            json.append(separator).append('"').append(phase.getKey()).append("\":").append(phase.getValue());
+            separator = ",";
+        }
+        json.append("},\"totalNanos\":").append(total())
+                .append(String.format(Locale.ROOT, ",\"megapixelsPerSecond\":%.3f}", megapixelsPerSecond()));
+        return json.toString();
+    }
+
+    public static String toJson(List<Metrics> ranks) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < ranks.size(); i++) {
+            json.append(i > 0 ? ",\n" : "\n").append(ranks.get(i).toJson());
+        }
+        return json.append("\n]\n").toString();
+    }
+
+    public static String toPrometheus(List<Metrics> ranks) {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP convolution_phase_seconds Wall time per phase of the last run\n");
+        text.append("# TYPE convolution_phase_seconds gauge\n");
+        for (Metrics metrics : ranks) {
+            synchronized (metrics) {
+                for (Map.Entry<String, Long> phase : metrics.nanos.entrySet()) {
+                    text.append(String.format(Locale.ROOT, "convolution_phase_seconds{%s,phase=\"%s\"} %.9f%n",
+                            metrics.labels(), phase.getKey(), phase.getValue() / 1e9));
+                }
+            }
+        }
+        text.append("# HELP convolution_pixels Pixels convolved in the last run\n");
+        text.append("# TYPE convolution_pixels gauge\n");
+        for (Metrics metrics : ranks) {
+            text.append("convolution_pixels{").append(metrics.labels()).append("} ").append(metrics.getPixels())
+                    .append('\n');
+        }
+        text.append("# HELP convolution_megapixels_per_second Compute throughput of the last run\n");
+        text.append("# TYPE convolution_megapixels_per_second gauge\n");
+        for (Metrics metrics : ranks) {
+            text.append(String.format(Locale.ROOT, "convolution_megapixels_per_second{%s} %.3f%n", metrics.labels(),
+                    metrics.megapixelsPerSecond()));
+        }
+        return text.toString();
+    }
+
+    private String labels() {
+        return "mode=\"" + mode + "\",rank=\"" + rank + "\"";
+    }
+
+    // Writes OUTPUT_PATH.json and OUTPUT_PATH.prom
+    public static void export(List<Metrics> ranks) throws IOException {
+        try (PrintWriter json = new PrintWriter(OUTPUT_PATH + ".json", "UTF-8")) {
+            json.print(toJson(ranks));
+        }
+        try (PrintWriter prometheus = new PrintWriter(OUTPUT_PATH + ".prom", "UTF-8")) {
+            prometheus.print(toPrometheus(ranks));
+        }
+    }
+
+    public static void export(Metrics metrics) throws IOException {
+        List<Metrics> ranks = new ArrayList<>();
+        ranks.add(metrics);
+        export(ranks);
+    }
+}
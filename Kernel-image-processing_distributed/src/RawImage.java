@@ -0,0 +1,287 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.ImageIO;
+
+// Uncompressed images for intermediate files: binary PPM (P6), PGM (P5) and RAW, a PPM-style
+// text header ("RAW\n<width> <height>\n") followed by the packed ARGB ints of the engines in
+// little-endian order. Pixels are read and written through memory mappings of a few row segments
+// at a time, so load and save cost a copy per row instead of a codec.
+public class RawImage implements Closeable {
+
+    // Rows mapped at once, mappings are limited to 2 GB and large ones strain the address space
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    // TYPE_BYTE_GRAY is a linear gray space, getRGB and setRGB convert to and from sRGB. PGM rows
+    // go through the same tables so every mode sees the values ImageIO images of the file give.
+    private static final int[] GRAY_TO_RGB = new int[256];
+    private static final byte[] RGB_TO_GRAY = new byte[256];
+
+    static {
+        BufferedImage gray = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] data = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+        for (int v = 0; v < 256; v++) {
+            data[v] = (byte) v;
+        }
+        gray.getRGB(0, 0, 256, 1, GRAY_TO_RGB, 0, 256);
+        for (int v = 0; v < 256; v++) {
+            gray.setRGB(v, 0, 0xff000000 | v << 16 | v << 8 | v);
+        }
+        System.arraycopy(data, 0, RGB_TO_GRAY, 0, 256);
+    }
+
+    private final FileChannel channel;
+    private final String format;
+    private final int width, height;
+    private final long headerBytes;
+    private final int pixelBytes;
+
+    private RawImage(FileChannel channel, String format, int width, int height, long headerBytes) {
+        this.channel = channel;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.headerBytes = headerBytes;
+        this.pixelBytes = format.equals("P5") ? 1 : format.equals("P6") ? 3 : 4;
+    }
+
+    // .ppm, .pgm and .raw files are handled here, everything else by ImageIO
+    public static boolean isRaw(String path) {
+        return formatFor(path) != null;
+    }
+
+    private static String formatFor(String path) {
+        String name = path.toLowerCase();
+        return name.endsWith(".ppm") ? "P6" : name.endsWith(".pgm") ? "P5" : name.endsWith(".raw") ? "RAW" : null;
+    }
+
+    public static RawImage open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            // Magic, width, height and for P5 / P6 maxval, separated by whitespace and # comments
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 4096));
+            String format = token(header);
+            if (!format.equals("P5") && !format.equals("P6") && !format.equals("RAW")) {
+                throw new IOException(file + " is not a binary PPM, PGM or RAW image");
+            }
+            int width = number(header, file);
+            int height = number(header, file);
+            if (!format.equals("RAW") && number(header, file) != 255) {
+                throw new IOException(file + ": only 8-bit samples (maxval 255) are supported");
+            }
+            // Exactly one whitespace byte ends the header
+            RawImage image = new RawImage(channel, format, width, height, header.position() + 1);
+            checkSize(file, width, height);
+            if (channel.size() < image.headerBytes + (long) width * height * image.pixelBytes) {
+                throw new IOException(file + " is shorter than its header says");
+            }
+            return image;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Header written, the pixels follow with writeRows
+    public static RawImage create(File file, int width, int height) throws IOException {
+        String format = formatFor(file.getName());
+        if (format == null) {
+            throw new IOException(file + " is not a .ppm, .pgm or .raw file");
+        }
+        String text = format + "\n" + width + " " + height + "\n" + (format.equals("RAW") ? "" : "255\n");
+        byte[] header = text.getBytes(StandardCharsets.US_ASCII);
+        checkSize(file, width, height);
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        RawImage image = new RawImage(channel, format, width, height, header.length);
+        channel.write(ByteBuffer.wrap(header), 0);
+        return image;
+    }
+
+    // Row access works on files of any size, only read and write need the image in one array
+    private static void checkSize(File file, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException(file + ": size " + width + "x" + height + " is not positive");
+        }
+    }
+
+    private static void checkWhole(File file, int width, int height) throws IOException {
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IOException(file + ": " + width + "x" + height + " does not fit in one array, stream it by rows");
+        }
+    }
+
+    private static int number(MappedByteBuffer header, File file) throws IOException {
+        String token = token(header);
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IOException(file + ": \"" + token + "\" in the header is not a number");
+        }
+    }
+
+    private static String token(MappedByteBuffer header) throws IOException {
+        ByteArrayOutputStream token = new ByteArrayOutputStream();
+        while (header.hasRemaining()) {
+            int b = header.get(header.position());
+            if (b == '#' && token.size() == 0) {
+                while (header.hasRemaining() && header.get() != '\n') {
+                    // Comment up to the end of the line
+                }
+            } else if (Character.isWhitespace(b)) {
+                if (token.size() > 0) {
+                    return token.toString(StandardCharsets.US_ASCII);
+                }
+                header.get();
+            } else {
+                token.write(header.get());
+            }
+        }
+        throw new IOException("Truncated header");
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Rows [y, y + count) as packed ARGB, the same values Convolution.getPixels gives
+    public void readRows(int y, int count, int[] dst, int offset) throws IOException {
+        long rowBytes = (long) width * pixelBytes;
+        int segmentRows = (int) Math.max(1, SEGMENT_BYTES / rowBytes);
+        for (int r = 0; r < count; r += segmentRows) {
+            int rows = Math.min(segmentRows, count - r);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                    headerBytes + (long) (y + r) * rowBytes, (long) rows * rowBytes);
+            int out = offset + r * width;
+            int pixels = rows * width;
+            switch (format) {
+                case "RAW":
+                    segment.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, out, pixels);
+                    break;
+                case "P6":
+                    for (int p = 0; p < pixels; p++) {
+                        dst[out + p] = 0xff000000 | (segment.get() & 0xff) << 16 | (segment.get() & 0xff) << 8
+                                | (segment.get() & 0xff);
+                    }
+                    break;
+                default:
+                    for (int p = 0; p < pixels; p++) {
+                        dst[out + p] = GRAY_TO_RGB[segment.get() & 0xff];
+                    }
+                    break;
+            }
+        }
+    }
+
+    // Rows [y, y + count) from packed ARGB. PGM expects gray pixels (equal channels, as the engines
+    // give them for gray images) and converts the blue channel.
+    public void writeRows(int y, int count, int[] src, int offset) throws IOException {
+        long rowBytes = (long) width * pixelBytes;
+        int segmentRows = (int) Math.max(1, SEGMENT_BYTES / rowBytes);
+        for (int r = 0; r < count; r += segmentRows) {
+            int rows = Math.min(segmentRows, count - r);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                    headerBytes + (long) (y + r) * rowBytes, (long) rows * rowBytes);
+            int in = offset + r * width;
+            int pixels = rows * width;
+            switch (format) {
+                case "RAW":
+                    segment.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(src, in, pixels);
+                    break;
+                case "P6":
+                    for (int p = 0; p < pixels; p++) {
+                        int rgb = src[in + p];
+                        segment.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+                    }
+                    break;
+                default:
+                    for (int p = 0; p < pixels; p++) {
+                        segment.put(RGB_TO_GRAY[src[in + p] & 0xff]);
+                    }
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Drop-in for ImageIO.read. PGM gives TYPE_BYTE_GRAY filled straight from the mapping,
+    // PPM TYPE_INT_RGB and RAW TYPE_INT_ARGB.
+    public static BufferedImage read(File file) throws IOException {
+        if (!isRaw(file.getName())) {
+            return ImageIO.read(file);
+        }
+        try (RawImage raw = open(file)) {
+            int width = raw.width;
+            int height = raw.height;
+            checkWhole(file, width, height);
+            if (raw.format.equals("P5")) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                int segmentRows = Math.max(1, SEGMENT_BYTES / width);
+                for (int y = 0; y < height; y += segmentRows) {
+                    int rows = Math.min(segmentRows, height - y);
+                    raw.channel.map(FileChannel.MapMode.READ_ONLY, raw.headerBytes + (long) y * width,
+                            (long) rows * width).get(data, y * width, rows * width);
+                }
+                return image;
+            }
+            BufferedImage image = new BufferedImage(width, height,
+                    raw.format.equals("RAW") ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            // TYPE_INT_RGB ignores the alpha byte readRows sets for PPM
+            raw.readRows(0, height, data, 0);
+            return image;
+        }
+    }
+
+    // Drop-in for ImageIO.write by file name. Gray images written as PGM keep their raster bytes.
+    public static void write(BufferedImage image, File file) throws IOException {
+        if (!isRaw(file.getName())) {
+            if (!ImageIO.write(image, file.getName().substring(file.getName().lastIndexOf('.') + 1), file)) {
+                throw new IOException("No writer for " + file);
+            }
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        checkWhole(file, width, height);
+        try (RawImage raw = create(file, width, height)) {
+            if (raw.format.equals("P5")) {
+                BufferedImage gray = image;
+                if (image.getType() != BufferedImage.TYPE_BYTE_GRAY || image.getRaster().getParent() != null) {
+                    gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+                    gray.getGraphics().drawImage(image, 0, 0, null);
+                }
+                byte[] data = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+                int segmentRows = Math.max(1, SEGMENT_BYTES / width);
+                for (int y = 0; y < height; y += segmentRows) {
+                    int rows = Math.min(segmentRows, height - y);
+                    raw.channel.map(FileChannel.MapMode.READ_WRITE, raw.headerBytes + (long) y * width,
+                            (long) rows * width).put(data, y * width, rows * width);
+                }
+                return;
+            }
+            raw.writeRows(0, height, Convolution.getPixels(image), 0);
+        }
+    }
+}
@@ -1,17 +1,38 @@
 
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import javax.imageio.ImageIO;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import mpi.*;
 
 public class distributed {
 
+    // Task farm: strips per worker, so fast workers can take over the share of slow ones
+    private static final int STRIPS_PER_WORKER = 8;
+
+    // Tag of the per-rank metrics every worker sends at the end
+    private static final int METRICS_TAG = 10;
+
+    // Threads every worker convolves its strips with, -Dthreads=<n> on the rank's JVM, all cores by default.
+    // With one rank per node the strips are cut once per node and the cores share them in tiles.
+    private static final int THREADS = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+
+    // Result of the last run on the master, null on the workers
+    public static BufferedImage resultImage;
+
     public static void convolution(String fileLocation, float[][] kernelMatrix, float multiplier) throws IOException {
+        convolution(fileLocation, kernelMatrix, multiplier, false);
+    }
+
+    // taskFarm = false: one equal strip per worker. taskFarm = true: many small strips handed out
+    // on request and collected in completion order.
+    public static void convolution(String fileLocation, float[][] kernelMatrix, float multiplier, boolean taskFarm)
+            throws IOException {
 
         int rank = MPI.COMM_WORLD.Rank();
         int size = MPI.COMM_WORLD.Size();
@@ -28,10 +49,10 @@ public class distributed {
 
         if (rank == 0) {
             // Master process
-            masterProcess(fileLocation, kernelMatrix, multiplier, size);
+            masterProcess(fileLocation, kernelMatrix, multiplier, size, taskFarm);
         } else {
             // Worker processes
-            workerProcess(kernelMatrix, multiplier);
+            workerProcess(kernelMatrix, multiplier, taskFarm);
         }
 
         try {
@@ -41,124 +62,218 @@ public class distributed {
         }
     }
 
-    private static void masterProcess(String fileLocation, float[][] kernelMatrix, float multiplier, int size)
-            throws IOException {
+    private static void masterProcess(String fileLocation, float[][] kernelMatrix, float multiplier, int size,
+            boolean taskFarm) throws IOException {
         int numWorkers = size - 1;
-        System.out.println("Master: Starting distributed image processing with " + numWorkers + " workers");
+        System.out.println("Master: Starting distributed image processing with " + numWorkers + " workers"
+                + (taskFarm ? " (task farm)" : ""));
+
+        // The clock runs from the first read, so decode, transfer and encode are all included
+        Metrics metrics = new Metrics(taskFarm ? "farm" : "distributed", 0);
+        long t = System.nanoTime();
 
         // Load the image
-        BufferedImage originalImage = ImageIO.read(new File(fileLocation));
+        BufferedImage originalImage = RawImage.read(new File(fileLocation));
         int width = originalImage.getWidth();
         int height = originalImage.getHeight();
+        t = metrics.record("decode", t);
 
         System.out.println("Master: Image loaded - " + width + "x" + height);
 
-        // Calculate chunk sizes
-        int[] yStarts = new int[numWorkers];
-        int[] yEnds = new int[numWorkers];
+        int[] pixels = Convolution.getPixels(originalImage);
+        int halo = kernelMatrix.length / 2;
+
+        BufferedImage resultImage = new BufferedImage(width, height, originalImage.getType());
+        int[] resultPixels = new int[width * height];
+        t = metrics.record("unpack", t);
+
+        // Kernel and multiplier in one array, the multiplier last; all workers get them in one broadcast
+        float[] kernelFlat = flattenKernel(kernelMatrix, multiplier);
+        t = metrics.record("serialize", t);
+        MPI.COMM_WORLD.Bcast(kernelFlat, 0, kernelFlat.length, MPI.FLOAT, 0);
+        MPI.COMM_WORLD.Bcast(new int[] { width, height }, 0, 2, MPI.INT, 0);
+        metrics.record("send", t);
+
+        if (taskFarm) {
+            farmStrips(pixels, resultPixels, resultImage, width, height, kernelMatrix.length, numWorkers, metrics);
+            finishMaster(resultImage, metrics, numWorkers);
+            return;
+        }
+
+        int[] starts = stripStarts(height, numWorkers);
+        int[] counts = new int[size];
+        int[] displs = new int[size];
+        stripLayout(starts, width, halo, counts, displs);
+
+        // Receives are posted before the strips go out, every result lands straight in its place
+        Request[] requests = new Request[numWorkers];
+        for (int worker = 1; worker <= numWorkers; worker++) {
+            int yStart = starts[worker - 1];
+            requests[worker - 1] = MPI.COMM_WORLD.Irecv(resultPixels, yStart * width,
+                    (starts[worker] - yStart) * width, MPI.INT, worker, 8);
+        }
+
+        // One Scatterv instead of a send per worker; strips overlap by their halo rows in the padded image
+        t = System.nanoTime();
+        int[] padded = haloRows(pixels, width, height, 0, height, halo);
+        t = metrics.record("serialize", t);
+        MPI.COMM_WORLD.Scatterv(padded, 0, counts, displs, MPI.INT, new int[0], 0, 0, MPI.INT, 0);
+        metrics.record("send", t);
+
+        // Strips are reassembled in completion order while later workers are still computing. Waitany
+        // only gets the requests still open, the last one moves into the place of the finished one.
+        int[] strips = new int[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            strips[i] = i;
+        }
+        for (int open = numWorkers; open > 0; open--) {
+            t = System.nanoTime();
+            int index = Request.Waitany(requests).index;
+            int strip = strips[index];
+            requests[index] = requests[open - 1];
+            strips[index] = strips[open - 1];
+            requests = Arrays.copyOf(requests, open - 1);
+            t = metrics.record("receive", t);
+            Convolution.setPixels(resultImage, resultPixels, starts[strip], starts[strip + 1]);
+            metrics.record("reassemble", t);
+        }
+
+        finishMaster(resultImage, metrics, numWorkers);
+    }
+
+    // First row of every worker's strip and the image height at the end, earlier strips take the extra rows
+    private static int[] stripStarts(int height, int numWorkers) {
+        int[] starts = new int[numWorkers + 1];
         int chunkHeight = height / numWorkers;
         int remainder = height % numWorkers;
-        int y = 0;
         for (int i = 0; i < numWorkers; i++) {
             int extra = (i < remainder) ? 1 : 0;
-            yStarts[i] = y;
-            yEnds[i] = y + chunkHeight + extra;
-            y = yEnds[i];
+            starts[i + 1] = starts[i] + chunkHeight + extra;
         }
+        return starts;
+    }
 
-        // Send chunks to workers
-        for (int worker = 1; worker <= numWorkers; worker++) {
-
-            int yStart = yStarts[worker - 1];
-            int yEnd = yEnds[worker - 1];
+    // Scatterv counts and displacements of the strips with halo rows in the padded image, rank 0 gets none.
+    // Master and workers compute the same layout.
+    private static void stripLayout(int[] starts, int width, int halo, int[] counts, int[] displs) {
+        for (int worker = 1; worker < counts.length; worker++) {
+            counts[worker] = (starts[worker] - starts[worker - 1] + 2 * halo) * width;
+            displs[worker] = starts[worker - 1] * width;
+        }
+    }
 
-            int actualChunkHeight = yEnd - yStart;
+    // Workers ask for the next strip whenever they finish one, results arrive in completion order
+    private static void farmStrips(int[] pixels, int[] resultPixels, BufferedImage resultImage, int width,
+            int height, int kernelSize, int numWorkers, Metrics metrics) {
+        int halo = kernelSize / 2;
+        int stripHeight = Math.max((height + numWorkers * STRIPS_PER_WORKER - 1) / (numWorkers * STRIPS_PER_WORKER),
+                kernelSize);
+
+        int nextStrip = 0;
+        int running = numWorkers;
+        while (running > 0) {
+            // A worker is ready: either its first request or the result of its last strip
+            int source = receiveChunk(MPI.ANY_SOURCE, resultPixels, resultImage, width, metrics);
+
+            if (nextStrip < height) {
+                int yEnd = Math.min(nextStrip + stripHeight, height);
+                sendChunk(source, pixels, width, height, nextStrip, yEnd, halo, metrics);
+                nextStrip = yEnd;
+            } else {
+                long t = System.nanoTime();
+                MPI.COMM_WORLD.Send(new int[] { -1, -1, width, 0 }, 0, 4, MPI.INT, source, 6);
+                metrics.record("send", t);
+                running--;
+            }
+        }
+    }
 
-            BufferedImage chunk = originalImage.getSubimage(0, yStart, width, actualChunkHeight);
-            byte[] chunkData = imageToBytes(chunk);
-            // System.out.println("Master: Sending chunk to worker " + worker + " yStart=" +
-            // yStart + " yEnd=" + yEnd
-            // + " height=" + actualChunkHeight);
-            // Send kernel and multiplier first (order must match worker)
-            int kernelSize = kernelMatrix.length;
-            float[] kernelFlat = flattenKernel(kernelMatrix);
+    // Chunk position, then the raw pixels with halo rows included
+    private static void sendChunk(int worker, int[] pixels, int width, int height, int yStart, int yEnd, int halo,
+            Metrics metrics) {
+        long t = System.nanoTime();
+        int[] chunkData = haloRows(pixels, width, height, yStart, yEnd, halo);
+        t = metrics.record("serialize", t);
+        MPI.COMM_WORLD.Send(new int[] { yStart, yEnd, width, yEnd - yStart }, 0, 4, MPI.INT, worker, 6);
+        MPI.COMM_WORLD.Send(chunkData, 0, chunkData.length, MPI.INT, worker, 5);
+        metrics.record("send", t);
+    }
 
-            MPI.COMM_WORLD.Send(kernelFlat, 0, kernelFlat.length, MPI.FLOAT, worker, 0);
-            MPI.COMM_WORLD.Send(new int[] { kernelSize }, 0, 1, MPI.INT, worker, 2);
-            MPI.COMM_WORLD.Send(new int[] { width }, 0, 1, MPI.INT, worker, 3);
-            MPI.COMM_WORLD.Send(new float[] { multiplier }, 0, 1, MPI.FLOAT, worker, 4);
-            // Then send chunk position and data
-            MPI.COMM_WORLD.Send(new int[] { yStart, yEnd, width, actualChunkHeight }, 0, 4, MPI.INT, worker, 6);
-            // Send the chunkData length first!
-            MPI.COMM_WORLD.Send(new int[] { chunkData.length }, 0, 1, MPI.INT, worker, 10);
-            MPI.COMM_WORLD.Send(chunkData, 0, chunkData.length, MPI.BYTE, worker, 5);
+    // Processed rows go straight to their place in the result, returns the sending worker.
+    // Receive time includes waiting for the worker to finish.
+    private static int receiveChunk(int source, int[] resultPixels, BufferedImage resultImage, int width,
+            Metrics metrics) {
+        long t = System.nanoTime();
+        int[] chunkPos = new int[4];
+        Status status = MPI.COMM_WORLD.Recv(chunkPos, 0, 4, MPI.INT, source, 9);
+
+        int yStart = chunkPos[0];
+        int actualChunkHeight = chunkPos[3];
+        // System.out.println("Master: Receiving chunk from worker " + status.source + "
+        // yStart=" + yStart + " height="+ actualChunkHeight);
+        if (actualChunkHeight > 0) {
+            MPI.COMM_WORLD.Recv(resultPixels, yStart * width, actualChunkHeight * width, MPI.INT, status.source, 8);
+            t = metrics.record("receive", t);
+            Convolution.setPixels(resultImage, resultPixels, yStart, yStart + actualChunkHeight);
+            metrics.record("reassemble", t);
+        } else {
+            metrics.record("receive", t);
         }
+        return status.source;
+    }
 
-        // Receive processed chunks from workers
-        BufferedImage resultImage = new BufferedImage(width, height, originalImage.getType());
-        long startTime = System.currentTimeMillis();
+    private static void finishMaster(BufferedImage resultImage, Metrics metrics, int numWorkers) {
+        distributed.resultImage = resultImage;
+
+        // The output sink (-Doutput, see OutputSink) encodes while the worker metrics come in
+        Future<File> written = OutputSink.getDefault().write(resultImage, metrics);
 
+        // Every worker reports its own phases once the work is done
+        List<Metrics> ranks = new ArrayList<>();
+        ranks.add(metrics);
+        long[] values = new long[Metrics.PHASES.length + 1];
         for (int worker = 1; worker <= numWorkers; worker++) {
-            // Receive chunk size
-            int[] chunkSize = new int[1];
-            MPI.COMM_WORLD.Recv(chunkSize, 0, 1, MPI.INT, worker, 7);
-
-            // Receive processed chunk
-            byte[] processedChunkData = new byte[chunkSize[0]];
-            MPI.COMM_WORLD.Recv(processedChunkData, 0, chunkSize[0], MPI.BYTE, worker, 8);
-
-            // Receive chunk position
-            int[] chunkPos = new int[4];
-            MPI.COMM_WORLD.Recv(chunkPos, 0, 4, MPI.INT, worker, 9);
-
-            BufferedImage processedChunk = bytesToImage(processedChunkData);
-            int yStart = chunkPos[0];
-            int actualChunkHeight = chunkPos[3];
-            // System.out.println("Master: Receiving chunk from worker " + worker + "
-            // yStart=" + yStart + " height="+ actualChunkHeight);
-            // Convert back to image and place in result
-            for (int yRow = 0; yRow < actualChunkHeight; yRow++) {
-                for (int x = 0; x < width; x++) {
-                    int rgb = processedChunk.getRGB(x, yRow);
-                    resultImage.setRGB(x, yStart + yRow, rgb);
-                }
-            }
+            MPI.COMM_WORLD.Recv(values, 0, values.length, MPI.LONG, worker, METRICS_TAG);
+            ranks.add(Metrics.fromArray(metrics.getMode(), worker, values));
         }
 
-        long endTime = System.currentTimeMillis();
-        long processingTime = endTime - startTime;
+        try {
+            File outputfile = written.get();
+            if (outputfile != null) {
+                System.out.println("Result image saved to " + outputfile);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Failed to save result image: " + e.getCause());
+        }
 
-        System.out.println("Master: Processing completed in " + processingTime + "ms");
-        // Save the result image directly instead of calling Main.finishSeq
+        System.out.println("Distributed convolution time: " + metrics.total() / 1000000 + " ms");
+        for (Metrics rank : ranks) {
+            rank.print();
+        }
         try {
-            File outputfile = new File("src/Temp/temp.jpg");
-            ImageIO.write(resultImage, "jpg", outputfile);
-            System.out.println("Result image saved to src/Temp/temp.jpg");
+            Metrics.export(ranks);
         } catch (IOException e) {
-            System.err.println("Failed to save result image: " + e.getMessage());
+            System.err.println("Failed to save metrics: " + e.getMessage());
         }
-        System.out.println("Distributed convolution time: " + processingTime + " ms");
     }
 
-    private static void workerProcess(float[][] kernelMatrix, float multiplier) throws IOException {
+    private static void workerProcess(float[][] kernelMatrix, float multiplier, boolean taskFarm) {
         int rank = MPI.COMM_WORLD.Rank();
         // System.out.println("Worker " + rank + ": Starting");
-
-        // Receive kernel and parameters
-        float[] kernelFlat = new float[kernelMatrix.length * kernelMatrix.length];
-        MPI.COMM_WORLD.Recv(kernelFlat, 0, kernelFlat.length, MPI.FLOAT, 0, 0);
-
-        int[] kernelSizeArray = new int[1];
-        MPI.COMM_WORLD.Recv(kernelSizeArray, 0, 1, MPI.INT, 0, 2);
-        int actualKernelSize = kernelSizeArray[0];
-
-        int[] widthArray = new int[1];
-        MPI.COMM_WORLD.Recv(widthArray, 0, 1, MPI.INT, 0, 3);
-        int width = widthArray[0];
-
-        float[] multiplierArr = new float[1];
-        MPI.COMM_WORLD.Recv(multiplierArr, 0, 1, MPI.FLOAT, 0, 4);
-        float actualMultiplier = multiplierArr[0];
+        Metrics metrics = new Metrics(taskFarm ? "farm" : "distributed", rank);
+        TileScheduler scheduler = THREADS > 1 ? new TileScheduler(THREADS) : null;
+        long t = System.nanoTime();
+
+        // Kernel, multiplier and image size from the master's broadcast; the kernel size is the one
+        // of the launcher's own broadcast
+        int actualKernelSize = kernelMatrix.length;
+        float[] kernelFlat = new float[actualKernelSize * actualKernelSize + 1];
+        MPI.COMM_WORLD.Bcast(kernelFlat, 0, kernelFlat.length, MPI.FLOAT, 0);
+        int[] imageSize = new int[2];
+        MPI.COMM_WORLD.Bcast(imageSize, 0, 2, MPI.INT, 0);
+        int width = imageSize[0];
+        int height = imageSize[1];
+        t = metrics.record("receive", t);
 
         // Reconstruct kernel matrix
         float[][] actualKernel = new float[actualKernelSize][actualKernelSize];
@@ -167,79 +282,114 @@ public class distributed {
                 actualKernel[i][j] = kernelFlat[i * actualKernelSize + j];
             }
         }
+        float actualMultiplier = kernelFlat[kernelFlat.length - 1];
+        metrics.record("unpack", t);
 
         // Receive chunk data
         int[] chunkPos = new int[4];
-        MPI.COMM_WORLD.Recv(chunkPos, 0, 4, MPI.INT, 0, 6);
-
-        // Receive the chunkData length first!
-        int[] chunkDataLenArr = new int[1];
-        MPI.COMM_WORLD.Recv(chunkDataLenArr, 0, 1, MPI.INT, 0, 10);
-        int chunkDataLen = chunkDataLenArr[0];
-        byte[] chunkData = new byte[chunkDataLen];
-        MPI.COMM_WORLD.Recv(chunkData, 0, chunkDataLen, MPI.BYTE, 0, 5);
-
-        // Convert chunk data to image
-        BufferedImage chunk = bytesToImage(chunkData);
-        int chunkHeight = chunk.getHeight();
-
-        // Process the chunk
-        BufferedImage processedChunk = new BufferedImage(width, chunkHeight, chunk.getType());
-
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < chunkHeight; j++) {
-                float oldRed = 0f, oldGreen = 0f, oldBlue = 0f;
-
-                for (int k = 0; k < actualKernelSize; k++) {
-                    for (int l = 0; l < actualKernelSize; l++) {
-                        int w = (i - actualKernelSize / 2 + k + width) % width;
-                        int h = (j - actualKernelSize / 2 + l + chunkHeight) % chunkHeight;
-
-                        int rgbTotal = chunk.getRGB(w, h);
-                        int rgbRed = (rgbTotal >> 16) & 0xff;
-                        int rgbGreen = (rgbTotal >> 8) & 0xff;
-                        int rgbBlue = (rgbTotal) & 0xff;
-
-                        oldRed += (rgbRed * actualKernel[k][l]);
-                        oldGreen += (rgbGreen * actualKernel[k][l]);
-                        oldBlue += (rgbBlue * actualKernel[k][l]);
-                    }
+        if (!taskFarm) {
+            // The strip of this rank with its halo rows, cut by the master's Scatterv
+            int size = MPI.COMM_WORLD.Size();
+            int[] starts = stripStarts(height, size - 1);
+            int[] counts = new int[size];
+            int[] displs = new int[size];
+            int halo = actualKernelSize / 2;
+            stripLayout(starts, width, halo, counts, displs);
+            int chunkHeight = starts[rank] - starts[rank - 1];
+            int[] chunkData = new int[counts[rank]];
+            t = System.nanoTime();
+            MPI.COMM_WORLD.Scatterv(new int[0], 0, counts, displs, MPI.INT, chunkData, 0, chunkData.length, MPI.INT,
+                    0);
+            metrics.record("receive", t);
+
+            int[] result = convolveChunk(chunkData, width, chunkHeight, actualKernel, actualMultiplier, scheduler,
+                    metrics);
+            t = System.nanoTime();
+            MPI.COMM_WORLD.Send(result, halo * width, chunkHeight * width, MPI.INT, 0, 8);
+            metrics.record("send", t);
+        } else {
+            // Task farm: an empty result asks for the first strip, the master answers yStart < 0 when done
+            MPI.COMM_WORLD.Send(new int[] { -1, -1, width, 0 }, 0, 4, MPI.INT, 0, 9);
+            while (true) {
+                t = System.nanoTime();
+                MPI.COMM_WORLD.Recv(chunkPos, 0, 4, MPI.INT, 0, 6);
+                metrics.record("receive", t);
+                if (chunkPos[0] < 0) {
+                    break;
                 }
-
-                int red = Math.min(Math.max((int) (oldRed * actualMultiplier), 0), 255);
-                int green = Math.min(Math.max((int) (oldGreen * actualMultiplier), 0), 255);
-                int blue = Math.min(Math.max((int) (oldBlue * actualMultiplier), 0), 255);
-
-                Color color = new Color(red, green, blue);
-                processedChunk.setRGB(i, j, color.getRGB());
+                processChunk(chunkPos, width, actualKernel, actualMultiplier, scheduler, metrics);
             }
         }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
 
-        // Convert processed chunk back to bytes
-        byte[] processedChunkData = imageToBytes(processedChunk);
+        long[] values = metrics.toArray();
+        MPI.COMM_WORLD.Send(values, 0, values.length, MPI.LONG, 0, METRICS_TAG);
+        // System.out.println("Worker " + rank + ": Processing completed");
+    }
 
-        // Send processed chunk back to master
-        MPI.COMM_WORLD.Send(new int[] { processedChunkData.length }, 0, 1, MPI.INT, 0, 7);
-        MPI.COMM_WORLD.Send(processedChunkData, 0, processedChunkData.length, MPI.BYTE, 0, 8);
-        MPI.COMM_WORLD.Send(chunkPos, 0, 4, MPI.INT, 0, 9);
+    private static void processChunk(int[] chunkPos, int width, float[][] actualKernel, float actualMultiplier,
+            TileScheduler scheduler, Metrics metrics) {
+        int actualKernelSize = actualKernel.length;
 
-        // System.out.println("Worker " + rank + ": Processing completed");
+        // The chunk arrives with halo rows of its neighbours above and below
+        int chunkHeight = chunkPos[3];
+        int halo = actualKernelSize / 2;
+        int haloHeight = chunkHeight + 2 * halo;
+        int[] chunkData = new int[width * haloHeight];
+        long t = System.nanoTime();
+        MPI.COMM_WORLD.Recv(chunkData, 0, chunkData.length, MPI.INT, 0, 5);
+        metrics.record("receive", t);
+
+        int[] result = convolveChunk(chunkData, width, chunkHeight, actualKernel, actualMultiplier, scheduler,
+                metrics);
+
+        // Send processed rows back to master
+        t = System.nanoTime();
+        MPI.COMM_WORLD.Send(chunkPos, 0, 4, MPI.INT, 0, 9);
+        if (chunkHeight > 0) {
+            MPI.COMM_WORLD.Send(result, halo * width, chunkHeight * width, MPI.INT, 0, 8);
+        }
+        metrics.record("send", t);
     }
 
-    private static byte[] imageToBytes(BufferedImage image) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", baos);
-        return baos.toByteArray();
+    // Only the rows between the halos are computed, so nothing wraps inside the chunk. With a
+    // scheduler the rows are split in tiles over its threads, otherwise computed on this one.
+    private static int[] convolveChunk(int[] chunkData, int width, int chunkHeight, float[][] actualKernel,
+            float actualMultiplier, TileScheduler scheduler, Metrics metrics) {
+        long t = System.nanoTime();
+        int halo = actualKernel.length / 2;
+        int haloHeight = chunkHeight + 2 * halo;
+        int[] result = new int[width * haloHeight];
+        if (scheduler != null && chunkHeight > 0) {
+            KernelPlan plan = KernelPlan.of(actualKernel, actualMultiplier);
+            scheduler.run(width, chunkHeight, actualKernel.length, (x0, y0, x1, y1) -> Convolution.convolve(chunkData,
+                    result, width, haloHeight, plan, x0, halo + y0, x1, halo + y1));
+        } else {
+            Convolution.convolve(chunkData, result, width, haloHeight, actualKernel, actualMultiplier, 0, halo, width,
+                    halo + chunkHeight);
+        }
+        metrics.record("compute", t);
+        metrics.addPixels((long) width * chunkHeight);
+        return result;
     }
 
-    private static BufferedImage bytesToImage(byte[] imageData) throws IOException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(imageData);
-        return ImageIO.read(bais);
+    // Rows [yStart - halo, yEnd + halo) of the image, wrapping around the top and bottom edge
+    private static int[] haloRows(int[] pixels, int width, int height, int yStart, int yEnd, int halo) {
+        int rows = yEnd - yStart + 2 * halo;
+        int[] chunk = new int[rows * width];
+        for (int r = 0; r < rows; r++) {
+            int source = Math.floorMod(yStart - halo + r, height);
+            System.arraycopy(pixels, source * width, chunk, r * width, width);
+        }
+        return chunk;
     }
 
-    private static float[] flattenKernel(float[][] kernelMatrix) {
+    private static float[] flattenKernel(float[][] kernelMatrix, float multiplier) {
         int kernelSize = kernelMatrix.length;
-        float[] kernelFlat = new float[kernelSize * kernelSize];
+        float[] kernelFlat = new float[kernelSize * kernelSize + 1];
+        kernelFlat[kernelSize * kernelSize] = multiplier;
         for (int i = 0; i < kernelSize; i++) {
             for (int j = 0; j < kernelSize; j++) {
                 kernelFlat[i * kernelSize + j] = kernelMatrix[i][j];
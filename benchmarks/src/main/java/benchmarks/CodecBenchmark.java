@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The ImageIO side of a run, kept apart from ComputeBenchmark. The file is read into memory first
+// so disk speed does not show up in the numbers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"300x300.jpg", "612x408.jpg", "1000x770.jpg", "2280x1400.jpg", "2500x1666.jpg", "2732x2732.jpg",
+            "3302 x 2398.jpg", "2670 x 4000.jpg", "5088x3253.jpg", "6360x4372.jpg"})
+    public String image;
+
+    private byte[] encoded;
+    private BufferedImage decoded;
+    private MethodHandle getPixels;
+
+    @Setup
+    public void setup() throws IOException, ReflectiveOperationException {
+        getPixels = Engines.getPixels();
+        encoded = Files.readAllBytes(Paths.get(Engines.IMAGES, image));
+        decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length);
+        ImageIO.write(decoded, "jpg", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int[] getPixels() throws Throwable {
+        return (int[]) getPixels.invokeExact(decoded);
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Convolution only: the image is decoded once per trial, each invocation runs one engine over
+// the packed pixels, no ImageIO and no file output are measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ComputeBenchmark {
+
+    @Param({"sequential", "parallel", "vector", "direct", "fft"})
+    public String engine;
+
+    @Param({"edge_detection", "sharpen", "box_blur", "emboss"})
+    public String kernel;
+
+    @Param({"300x300.jpg", "612x408.jpg", "1000x770.jpg", "2280x1400.jpg", "2500x1666.jpg", "2732x2732.jpg",
+            "3302 x 2398.jpg", "2670 x 4000.jpg", "5088x3253.jpg", "6360x4372.jpg"})
+    public String image;
+
+    private Engines.Engine run;
+    private float[][] kernelMatrix;
+    private float multiplier;
+    private int width, height;
+    private int[] source, result;
+
+    @Setup
+    public void setup() throws Throwable {
+        run = Engines.get(engine);
+        kernelMatrix = Engines.kernel(kernel);
+        multiplier = Engines.multiplier(kernel);
+
+        BufferedImage img = Engines.read(image);
+        width = img.getWidth();
+        height = img.getHeight();
+        source = (int[]) Engines.getPixels().invokeExact(img);
+        result = new int[width * height];
+    }
+
+    @Benchmark
+    public int[] convolve() throws Throwable {
+        run.convolve(source, result, width, height, kernelMatrix, multiplier);
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import javax.imageio.ImageIO;
+
+// JMH refuses benchmarks in the default package and named packages cannot import the application
+// classes, so they are reached through method handles. The call overhead is nanoseconds against
+// convolutions of milliseconds.
+final class Engines {
+
+    // Image directory, -Dimages=... when the benchmarks do not run from the benchmarks directory
+    static final String IMAGES = System.getProperty("images", "../src/Images");
+
+    private static final MethodType FULL = MethodType.methodType(void.class, int[].class, int[].class, int.class,
+            int.class, float[][].class, float.class);
+    private static final MethodType REGION = MethodType.methodType(void.class, int[].class, int[].class, int.class,
+            int.class, float[][].class, float.class, int.class, int.class, int.class, int.class);
+
+    interface Engine {
+        void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix, float multiplier)
+                throws Throwable;
+    }
+
+    private Engines() {
+    }
+
+    static Engine get(String name) throws ReflectiveOperationException {
+        switch (name) {
+            case "sequential":
+                return full(find("Convolution", "convolve", FULL));
+            case "parallel":
+                return full(find("parallel", "convolve", FULL));
+            case "vector":
+                return region(find("Vectorized", "convolve", REGION));
+            case "direct":
+                return region(find("Convolution", "convolveDirect", REGION));
+            case "fft":
+                return region(find("FFTConvolution", "convolve", REGION));
+            default:
+                throw new IllegalArgumentException("Unknown engine " + name);
+        }
+    }
+
+    static MethodHandle find(String className, String method, MethodType type) throws ReflectiveOperationException {
+        return MethodHandles.publicLookup().findStatic(Class.forName(className), method, type);
+    }
+
+    private static Engine full(MethodHandle handle) {
+        // Statement lambdas, an expression lambda would call invokeExact with an Object return type
+        return (src, dst, width, height, kernelMatrix, multiplier) -> {
+            handle.invokeExact(src, dst, width, height, kernelMatrix, multiplier);
+        };
+    }
+
+    private static Engine region(MethodHandle handle) {
+        return (src, dst, width, height, kernelMatrix, multiplier) -> {
+            handle.invokeExact(src, dst, width, height, kernelMatrix, multiplier, 0, 0, width, height);
+        };
+    }
+
+    static float[][] kernel(String name) throws Throwable {
+        return (float[][]) find("Kernels", "getKernelMatrix", MethodType.methodType(float[][].class, String.class))
+                .invoke(name);
+    }
+
+    static float multiplier(String name) throws Throwable {
+        return (float) find("Kernels", "getMultiplier", MethodType.methodType(float.class, String.class))
+                .invoke(name);
+    }
+
+    static BufferedImage read(String image) throws IOException {
+        BufferedImage img = ImageIO.read(new File(IMAGES, image));
+        if (img == null) {
+            throw new IOException("Could not read " + new File(IMAGES, image));
+        }
+        return img;
+    }
+
+    // Convolution.getPixels(BufferedImage), int[] (BufferedImage)
+    static MethodHandle getPixels() throws ReflectiveOperationException {
+        return find("Convolution", "getPixels", MethodType.methodType(int[].class, BufferedImage.class));
+    }
+}
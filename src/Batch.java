@@ -0,0 +1,212 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless batch mode: decode, convolution and encode run as separate stages joined by bounded
+// queues, so reading and writing files overlaps with the convolution of other images.
+public class Batch {
+
+    // Decoded images waiting for the convolution stage, and results waiting to be written
+    private static final int QUEUE_SIZE = 4;
+
+    // Marks the end of a queue, one per consumer thread
+    private static final Job END = new Job(null);
+
+    private static class Job {
+        final File file;
+        BufferedImage image;
+        int[] pixels;
+
+        Job(File file) {
+            this.file = file;
+        }
+    }
+
+    // java Batch <directory|list.txt> <outputDirectory> [kernel] [ioThreads]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: Batch <directory|list.txt> <outputDirectory> "
+                    + "[edge_detection|sharpen|box_blur|emboss] [ioThreads]");
+            return;
+        }
+        String kernel = args.length > 2 ? args[2] : "edge_detection";
+        int ioThreads = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        convolution(inputFiles(new File(args[0])), new File(args[1]), Kernels.getKernelMatrix(kernel),
+                Kernels.getMultiplier(kernel), ioThreads);
+    }
+
+    // Every image in a directory, or every line of a text file list
+    public static List<File> inputFiles(File input) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] entries = input.listFiles();
+            if (entries != null) {
+                for (File file : entries) {
+                    String name = file.getName().toLowerCase();
+                    if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")
+                            || RawImage.isRaw(name))) {
+                        files.add(file);
+                    }
+                }
+            }
+            files.sort(null);
+        } else {
+            for (String line : Files.readAllLines(input.toPath())) {
+                if (!line.isBlank()) {
+                    files.add(new File(line.trim()));
+                }
+            }
+        }
+        return files;
+    }
+
+    public static void convolution(List<File> files, File outputDirectory, float[][] kernelMatrix, float multiplier,
+            int ioThreads) throws InterruptedException, IOException {
+
+        // Results keep the input's file name, two inputs with the same name would overwrite each other
+        Set<String> names = new HashSet<>();
+        for (File file : files) {
+            if (!names.add(file.getName())) {
+                throw new IOException("More than one input is named " + file.getName());
+            }
+        }
+
+        outputDirectory.mkdirs();
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<Job> convolved = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        // Phases are summed over the threads of a stage
+        Metrics metrics = new Metrics("batch");
+
+        long start = System.currentTimeMillis();
+
+        List<Thread> decoders = new ArrayList<>();
+        for (int n = 0; n < ioThreads; n++) {
+            decoders.add(start("decode-" + n, () -> {
+                for (int i = next.getAndIncrement(); i < files.size(); i = next.getAndIncrement()) {
+                    Job job = new Job(files.get(i));
+                    long t = System.nanoTime();
+                    try {
+                        job.image = RawImage.read(job.file);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Could not read " + job.file + ": " + e.getMessage());
+                    }
+                    metrics.record("decode", t);
+                    if (job.image == null) {
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    decoded.put(job);
+                }
+            }));
+        }
+
+        // One image at a time, spread over all cores by the tile scheduler
+        Thread convolver = start("convolve", () -> {
+            Job job = decoded.take();
+            try {
+                for (; job != END; job = decoded.take()) {
+                    try {
+                        int width = job.image.getWidth();
+                        int height = job.image.getHeight();
+                        long t = System.nanoTime();
+                        int[] source = Convolution.getPixels(job.image);
+                        int[] result = new int[width * height];
+                        t = metrics.record("unpack", t);
+                        if (Grayscale.isGray(job.image)) {
+                            Grayscale.convolve(source, result, width, height, kernelMatrix, multiplier,
+                                    parallel::convolve);
+                        } else {
+                            parallel.convolve(source, result, width, height, kernelMatrix, multiplier);
+                        }
+                        metrics.record("compute", t);
+                        metrics.addPixels((long) width * height);
+                        job.pixels = result;
+                    } catch (RuntimeException e) {
+                        System.out.println("Could not convolve " + job.file + ": " + e);
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    convolved.put(job);
+                }
+            } finally {
+                // After an Error the rest is dropped, so the decoders never block on a full queue
+                while (job != END) {
+                    failed.incrementAndGet();
+                    job = decoded.take();
+                }
+                for (int n = 0; n < ioThreads; n++) {
+                    convolved.put(END);
+                }
+            }
+        });
+
+        List<Thread> encoders = new ArrayList<>();
+        for (int n = 0; n < ioThreads; n++) {
+            encoders.add(start("encode-" + n, () -> {
+                for (Job job = convolved.take(); job != END; job = convolved.take()) {
+                    String name = job.file.getName();
+                    try {
+                        BufferedImage output = new BufferedImage(job.image.getWidth(), job.image.getHeight(),
+                                job.image.getType() != BufferedImage.TYPE_CUSTOM ? job.image.getType()
+                                        : job.image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                                                : BufferedImage.TYPE_INT_RGB);
+                        long t = System.nanoTime();
+                        Convolution.setPixels(output, job.pixels);
+                        t = metrics.record("pack", t);
+                        RawImage.write(output, new File(outputDirectory, name));
+                        metrics.record("encode", t);
+                        done.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Could not write " + name + ": " + e.getMessage());
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        for (Thread decoder : decoders) {
+            decoder.join();
+        }
+        decoded.put(END);
+        convolver.join();
+        for (Thread encoder : encoders) {
+            encoder.join();
+        }
+
+        long time = Math.max(System.currentTimeMillis() - start, 1);
+        System.out.println("Processed " + done.get() + " images, " + failed.get() + " failed");
+        System.out.println("Time elapsed: " + time + " ms");
+        System.out.printf("%.2f images/s, %.2f MP/s%n", done.get() * 1000.0 / time,
+                metrics.getPixels() / 1000.0 / time);
+        metrics.print();
+        Metrics.setLast(metrics);
+        Metrics.export(metrics);
+    }
+
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread start(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,321 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+public class Convolution {
+
+    // Measured once by calibrate(): cost of one direct tap and of one FFT work unit
+    private static double directTapNanos;
+    private static double fftUnitNanos;
+
+    // Packed ARGB pixels, same values as img.getRGB(0, 0, width, height, null, 0, width)
+    public static int[] getPixels(BufferedImage img) {
+        int[] pixels = new int[img.getWidth() * img.getHeight()];
+        getPixels(img, pixels);
+        return pixels;
+    }
+
+    // Into a buffer the caller keeps, dst holds at least width * height pixels
+    public static void getPixels(BufferedImage img, int[] dst) {
+        getPixels(img, 0, img.getHeight(), dst, 0);
+    }
+
+    // Rows [y0, y1) into dst from offset on
+    public static void getPixels(BufferedImage img, int y0, int y1, int[] dst, int offset) {
+        int width = img.getWidth();
+        WritableRaster raster = img.getRaster();
+        int first = y0 * width;
+        int count = (y1 - y0) * width;
+
+        if (raster.getParent() == null) {
+            switch (img.getType()) {
+                case BufferedImage.TYPE_INT_RGB: {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    for (int i = 0, p = first; i < count; i++, p++) {
+                        dst[offset + i] = 0xff000000 | data[p];
+                    }
+                    return;
+                }
+                case BufferedImage.TYPE_INT_ARGB: {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    System.arraycopy(data, first, dst, offset, count);
+                    return;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR: {
+                    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    for (int i = 0, b = 3 * first; i < count; i++, b += 3) {
+                        dst[offset + i] = 0xff000000 | (data[b + 2] & 0xff) << 16 | (data[b + 1] & 0xff) << 8
+                                | (data[b] & 0xff);
+                    }
+                    return;
+                }
+                default:
+                    break;
+            }
+        }
+        img.getRGB(0, y0, width, y1 - y0, dst, offset, width);
+    }
+
+    // Inverse of getPixels, same result as img.setRGB(0, 0, width, height, pixels, 0, width)
+    public static void setPixels(BufferedImage img, int[] pixels) {
+        setPixels(img, pixels, 0, img.getHeight());
+    }
+
+    // Rows [y0, y1) only, pixels holds the whole image
+    public static void setPixels(BufferedImage img, int[] pixels, int y0, int y1) {
+        setPixels(img, pixels, y0 * img.getWidth(), y0, y1);
+    }
+
+    // Rows [y0, y1) from pixels[offset] on
+    public static void setPixels(BufferedImage img, int[] pixels, int offset, int y0, int y1) {
+        int width = img.getWidth();
+        WritableRaster raster = img.getRaster();
+        int first = y0 * width;
+        int count = (y1 - y0) * width;
+
+        if (raster.getParent() == null) {
+            switch (img.getType()) {
+                case BufferedImage.TYPE_INT_RGB: {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    for (int i = 0, p = first; i < count; i++, p++) {
+                        data[p] = pixels[offset + i] & 0xffffff;
+                    }
+                    return;
+                }
+                case BufferedImage.TYPE_INT_ARGB: {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    System.arraycopy(pixels, offset, data, first, count);
+                    return;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR: {
+                    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    for (int i = 0, b = 3 * first; i < count; i++, b += 3) {
+                        int rgb = pixels[offset + i];
+                        data[b] = (byte) rgb;
+                        data[b + 1] = (byte) (rgb >> 8);
+                        data[b + 2] = (byte) (rgb >> 16);
+                    }
+                    return;
+                }
+                default:
+                    break;
+            }
+        }
+        img.setRGB(0, y0, width, y1 - y0, pixels, offset, width);
+    }
+
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier) {
+        convolve(src, dst, width, height, kernelMatrix, multiplier, 0, 0, width, height);
+    }
+
+    // Convolves the region [x0, x1) x [y0, y1) of src into dst, edges wrap around the image
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier, int x0, int y0, int x1, int y1) {
+        convolve(src, dst, width, height, KernelPlan.of(kernelMatrix, multiplier), x0, y0, x1, y1);
+    }
+
+    public static void convolve(int[] src, int[] dst, int width, int height, KernelPlan plan, int x0, int y0,
+            int x1, int y1) {
+
+        int len = plan.len;
+        float multiplier = plan.multiplier;
+        if (plan.box) {
+            BoxFilter.convolve(src, dst, width, height, len / 2, plan.kernel[0][0], multiplier, x0, y0, x1, y1);
+        } else if (plan.separated != null) {
+            convolveSeparable(src, dst, width, height, plan.separated[0], plan.separated[1], multiplier, x0, y0, x1,
+                    y1);
+        } else if (plan.fixed != null) {
+            // Integer taps sum in int, with the same output as the float loop
+            FixedPointConvolution.convolve(src, dst, width, height, plan.fixed, x0, y0, x1, y1);
+        } else if (len > 3 && !plan.exact && useFFT(plan, x1 - x0, y1 - y0)) {
+            // The FFT rounds, exact kernels only take it when the caller runs FFTConvolution itself
+            FFTConvolution.convolve(src, dst, width, height, plan.kernel, multiplier, x0, y0, x1, y1);
+        } else {
+            convolveDirect(src, dst, width, height, plan, x0, y0, x1, y1);
+        }
+    }
+
+    // 3x3 kernels always stay on the direct path so their output is bit-identical to the old loops.
+    // The direct cost counts only the non-zero taps the plan visits.
+    private static boolean useFFT(KernelPlan plan, int regionWidth, int regionHeight) {
+        calibrate();
+        return fftUnitNanos * FFTConvolution.cost(plan.len, regionWidth, regionHeight)
+                < directTapNanos * plan.getTaps();
+    }
+
+    // Times both paths on a synthetic image once per JVM, the crossover follows from the two costs
+    private static synchronized void calibrate() {
+        if (fftUnitNanos > 0) {
+            return;
+        }
+        int size = 256;
+        int len = 9;
+        Random random = new Random(1);
+
+        int[] src = new int[size * size];
+        for (int p = 0; p < src.length; p++) {
+            src[p] = random.nextInt();
+        }
+        float[][] kernel = new float[len][len];
+        for (float[] row : kernel) {
+            for (int l = 0; l < len; l++) {
+                row[l] = random.nextFloat() - 0.5f;
+            }
+        }
+        int[] dst = new int[size * size];
+
+        long direct = Long.MAX_VALUE;
+        long fft = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            convolveDirect(src, dst, size, size, KernelPlan.compile(kernel, 1f), 0, 0, size, size);
+            long middle = System.nanoTime();
+            FFTConvolution.convolve(src, dst, size, size, kernel, 1f, 0, 0, size, size);
+            long finish = System.nanoTime();
+            direct = Math.min(direct, middle - start);
+            fft = Math.min(fft, finish - middle);
+        }
+        directTapNanos = (double) direct / ((double) size * size * len * len);
+        fftUnitNanos = fft / ((double) size * size * FFTConvolution.cost(len, size, size));
+    }
+
+    public static void convolveDirect(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier, int x0, int y0, int x1, int y1) {
+        convolveDirect(src, dst, width, height, KernelPlan.of(kernelMatrix, multiplier), x0, y0, x1, y1);
+    }
+
+    // Every non-zero tap per pixel. Single taps keep the order of the original getRGB loops and
+    // pairs only exist where the sums are exact, so the float sums are bit-identical to them.
+    public static void convolveDirect(int[] src, int[] dst, int width, int height, KernelPlan plan, int x0, int y0,
+            int x1, int y1) {
+
+        int len = plan.len;
+        int half = len / 2;
+        float multiplier = plan.multiplier;
+        float[] weights = plan.weights;
+        int[] dx = plan.dx;
+        int[] dy = plan.dy;
+        int[] dx2 = plan.dx2;
+        int[] dy2 = plan.dy2;
+        int pairs = plan.pairs;
+
+        // Wrapped source column / row start for every tap position of the region
+        int[] columns = new int[x1 - x0 + len - 1];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = Math.floorMod(x0 - half + c, width);
+        }
+        int[] rows = new int[y1 - y0 + len - 1];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = Math.floorMod(y0 - half + r, height) * width;
+        }
+
+        for (int j = y0; j < y1; j++) {
+            int out = j * width;
+            for (int i = x0; i < x1; i++) {
+
+                float oldRed = 0f;
+                float oldGreen = 0f;
+                float oldBlue = 0f;
+
+                for (int t = 0; t < pairs; t++) {
+
+                    int rgb1 = src[rows[j - y0 + dy[t]] + columns[i - x0 + dx[t]]];
+                    int rgb2 = src[rows[j - y0 + dy2[t]] + columns[i - x0 + dx2[t]]];
+                    float weight = weights[t];
+
+                    oldRed += ((((rgb1 >> 16) & 0xff) + ((rgb2 >> 16) & 0xff)) * weight);
+                    oldGreen += ((((rgb1 >> 8) & 0xff) + ((rgb2 >> 8) & 0xff)) * weight);
+                    oldBlue += (((rgb1 & 0xff) + (rgb2 & 0xff)) * weight);
+                }
+
+                for (int t = pairs; t < weights.length; t++) {
+
+                    int rgbTotal = src[rows[j - y0 + dy[t]] + columns[i - x0 + dx[t]]];
+                    float weight = weights[t];
+
+                    oldRed += (((rgbTotal >> 16) & 0xff) * weight);
+                    oldGreen += (((rgbTotal >> 8) & 0xff) * weight);
+                    oldBlue += ((rgbTotal & 0xff) * weight);
+                }
+
+                dst[out + i] = pixel(src[out + i], oldRed, oldGreen, oldBlue, multiplier);
+            }
+        }
+    }
+
+    // Rank-1 kernel as a horizontal pass with xWeights followed by a vertical pass with yWeights,
+    // 2 * len taps per pixel instead of len * len
+    public static void convolveSeparable(int[] src, int[] dst, int width, int height, float[] xWeights,
+            float[] yWeights, float multiplier, int x0, int y0, int x1, int y1) {
+
+        int len = xWeights.length;
+        int half = len / 2;
+        int regionWidth = x1 - x0;
+        int rowCount = y1 - y0 + len - 1;
+
+        int[] columns = new int[regionWidth + len - 1];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = Math.floorMod(x0 - half + c, width);
+        }
+
+        // Horizontal pass over every source row the vertical pass reads
+        float[] red = new float[rowCount * regionWidth];
+        float[] green = new float[rowCount * regionWidth];
+        float[] blue = new float[rowCount * regionWidth];
+
+        for (int r = 0; r < rowCount; r++) {
+            int row = Math.floorMod(y0 - half + r, height) * width;
+            int t = r * regionWidth;
+            for (int i = 0; i < regionWidth; i++) {
+
+                float sumRed = 0f;
+                float sumGreen = 0f;
+                float sumBlue = 0f;
+
+                for (int k = 0; k < len; k++) {
+                    int rgbTotal = src[row + columns[i + k]];
+                    float weight = xWeights[k];
+
+                    sumRed += (((rgbTotal >> 16) & 0xff) * weight);
+                    sumGreen += (((rgbTotal >> 8) & 0xff) * weight);
+                    sumBlue += ((rgbTotal & 0xff) * weight);
+                }
+                red[t + i] = sumRed;
+                green[t + i] = sumGreen;
+                blue[t + i] = sumBlue;
+            }
+        }
+
+        // Vertical pass
+        for (int j = y0; j < y1; j++) {
+            int out = j * width;
+            int t = (j - y0) * regionWidth;
+            for (int i = 0; i < regionWidth; i++) {
+
+                float sumRed = 0f;
+                float sumGreen = 0f;
+                float sumBlue = 0f;
+
+                for (int l = 0, p = t + i; l < len; l++, p += regionWidth) {
+                    float weight = yWeights[l];
+
+                    sumRed += red[p] * weight;
+                    sumGreen += green[p] * weight;
+                    sumBlue += blue[p] * weight;
+                }
+                dst[out + x0 + i] = pixel(src[out + x0 + i], sumRed, sumGreen, sumBlue, multiplier);
+            }
+        }
+    }
+
+    // The alpha of the source pixel is kept, only the color channels are convolved
+    static int pixel(int source, float red, float green, float blue, float multiplier) {
+        int r = Math.min(Math.max((int) (red * multiplier), 0), 255);
+        int g = Math.min(Math.max((int) (green * multiplier), 0), 255);
+        int b = Math.min(Math.max((int) (blue * multiplier), 0), 255);
+        return (source & 0xff000000) | r << 16 | g << 8 | b;
+    }
+}
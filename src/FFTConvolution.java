@@ -0,0 +1,226 @@
+import java.util.Arrays;
+
+public class FFTConvolution {
+
+    private static final int MIN_SIZE = 64;
+    private static final int MAX_SIZE = 512;
+
+    // Spectrum of the last kernel, tiles of the same call reuse it
+    private static Spectrum cached;
+
+    // Frequency-domain convolution of the region [x0, x1) x [y0, y1), edges wrap around the image.
+    // The region is cut into blocks; each block reads its len - 1 halo from the wrapped source,
+    // so the result is the same circular convolution as the direct loop (overlap-save).
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier, int x0, int y0, int x1, int y1) {
+
+        int len = kernelMatrix.length;
+        int half = len / 2;
+        int n = blockSize(len, x1 - x0, y1 - y0);
+        int valid = n - len + 1;
+        Spectrum kernel = spectrum(kernelMatrix, n);
+
+        double[] re = new double[n * n];
+        double[] im = new double[n * n];
+        double[] blueRe = new double[n * n];
+        double[] blueIm = new double[n * n];
+        double[] tempRe = new double[n];
+        double[] tempIm = new double[n];
+
+        for (int by = y0; by < y1; by += valid) {
+            int blockHeight = Math.min(valid, y1 - by);
+            for (int bx = x0; bx < x1; bx += valid) {
+                int blockWidth = Math.min(valid, x1 - bx);
+
+                // Red and green share one complex transform, the kernel is real so they stay separable
+                Arrays.fill(re, 0);
+                Arrays.fill(im, 0);
+                Arrays.fill(blueRe, 0);
+                Arrays.fill(blueIm, 0);
+                for (int y = 0; y < blockHeight + len - 1; y++) {
+                    int row = Math.floorMod(by - half + y, height) * width;
+                    for (int x = 0; x < blockWidth + len - 1; x++) {
+                        int rgb = src[row + Math.floorMod(bx - half + x, width)];
+                        re[y * n + x] = (rgb >> 16) & 0xff;
+                        im[y * n + x] = (rgb >> 8) & 0xff;
+                        blueRe[y * n + x] = rgb & 0xff;
+                    }
+                }
+
+                transform2D(re, im, n, kernel.cos, kernel.sin, false, tempRe, tempIm);
+                transform2D(blueRe, blueIm, n, kernel.cos, kernel.sin, false, tempRe, tempIm);
+                multiply(re, im, kernel.re, kernel.im);
+                multiply(blueRe, blueIm, kernel.re, kernel.im);
+                transform2D(re, im, n, kernel.cos, kernel.sin, true, tempRe, tempIm);
+                transform2D(blueRe, blueIm, n, kernel.cos, kernel.sin, true, tempRe, tempIm);
+
+                for (int y = 0; y < blockHeight; y++) {
+                    int out = (by + y) * width + bx;
+                    for (int x = 0; x < blockWidth; x++) {
+                        int p = y * n + x;
+                        dst[out + x] = (src[out + x] & 0xff000000) | channel(re[p], multiplier) << 16
+                                | channel(im[p], multiplier) << 8 | channel(blueRe[p], multiplier);
+                    }
+                }
+            }
+        }
+    }
+
+    // Work units (butterfly points plus spectrum products) per output pixel, used by the
+    // dispatcher together with the measured cost of one unit
+    public static double cost(int len, int regionWidth, int regionHeight) {
+        int n = blockSize(len, regionWidth, regionHeight);
+        double validWidth = Math.min(n - len + 1, regionWidth);
+        double validHeight = Math.min(n - len + 1, regionHeight);
+        double log = 2 * Integer.numberOfTrailingZeros(n);
+        return 2 * (2 * n * n * log + n * n) / (validWidth * validHeight);
+    }
+
+    // Power of two block with the lowest cost per output pixel for this kernel and region
+    private static int blockSize(int len, int regionWidth, int regionHeight) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n <<= 1) {
+            if (n < len) {
+                continue;
+            }
+            double validWidth = Math.min(n - len + 1, regionWidth);
+            double validHeight = Math.min(n - len + 1, regionHeight);
+            double cost = (double) n * n * Integer.numberOfTrailingZeros(n) / (validWidth * validHeight);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = n;
+            }
+            if (n - len + 1 >= Math.max(regionWidth, regionHeight)) {
+                break;
+            }
+        }
+        return best == 0 ? Integer.highestOneBit(len - 1) << 1 : best;
+    }
+
+    private static int channel(double value, float multiplier) {
+        // The transform is exact to about 1e-9, keep integer sums from truncating to the value below
+        return Math.min(Math.max((int) (value * multiplier + 1e-6), 0), 255);
+    }
+
+    private static void multiply(double[] re, double[] im, double[] kernelRe, double[] kernelIm) {
+        for (int p = 0; p < re.length; p++) {
+            double r = re[p] * kernelRe[p] - im[p] * kernelIm[p];
+            double i = re[p] * kernelIm[p] + im[p] * kernelRe[p];
+            re[p] = r;
+            im[p] = i;
+        }
+    }
+
+    private static synchronized Spectrum spectrum(float[][] kernelMatrix, int n) {
+        Spectrum spectrum = cached;
+        if (spectrum != null && spectrum.n == n && Arrays.deepEquals(spectrum.kernel, kernelMatrix)) {
+            return spectrum;
+        }
+        spectrum = new Spectrum(kernelMatrix, n);
+        cached = spectrum;
+        return spectrum;
+    }
+
+    private static class Spectrum {
+
+        final float[][] kernel;
+        final int n;
+        final double[] re, im, cos, sin;
+
+        Spectrum(float[][] kernelMatrix, int n) {
+            int len = kernelMatrix.length;
+            this.kernel = new float[len][];
+            for (int k = 0; k < len; k++) {
+                kernel[k] = kernelMatrix[k].clone();
+            }
+            this.n = n;
+
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / n);
+                sin[i] = Math.sin(2 * Math.PI * i / n);
+            }
+
+            // The engines correlate (out(x) = sum K[k] * in(x + k)), so the kernel goes in mirrored
+            re = new double[n * n];
+            im = new double[n * n];
+            for (int k = 0; k < len; k++) {
+                for (int l = 0; l < len; l++) {
+                    re[((n - l) % n) * n + (n - k) % n] = kernelMatrix[k][l];
+                }
+            }
+            transform2D(re, im, n, cos, sin, false, new double[n], new double[n]);
+        }
+    }
+
+    private static void transform2D(double[] re, double[] im, int n, double[] cos, double[] sin, boolean inverse,
+            double[] tempRe, double[] tempIm) {
+        for (int y = 0; y < n; y++) {
+            System.arraycopy(re, y * n, tempRe, 0, n);
+            System.arraycopy(im, y * n, tempIm, 0, n);
+            transform(tempRe, tempIm, cos, sin, inverse);
+            System.arraycopy(tempRe, 0, re, y * n, n);
+            System.arraycopy(tempIm, 0, im, y * n, n);
+        }
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                tempRe[y] = re[y * n + x];
+                tempIm[y] = im[y * n + x];
+            }
+            transform(tempRe, tempIm, cos, sin, inverse);
+            for (int y = 0; y < n; y++) {
+                re[y * n + x] = tempRe[y];
+                im[y * n + x] = tempIm[y];
+            }
+        }
+        if (inverse) {
+            double scale = 1.0 / ((double) n * n);
+            for (int p = 0; p < re.length; p++) {
+                re[p] *= scale;
+                im[p] *= scale;
+            }
+        }
+    }
+
+    // Iterative radix-2 Cooley-Tukey, in place
+    private static void transform(double[] re, double[] im, double[] cos, double[] sin, boolean inverse) {
+        int n = re.length;
+
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int size = 2; size <= n; size <<= 1) {
+            int halfSize = size >> 1;
+            int step = n / size;
+            for (int i = 0; i < n; i += size) {
+                for (int j = 0, t = 0; j < halfSize; j++, t += step) {
+                    double wr = cos[t];
+                    double wi = inverse ? sin[t] : -sin[t];
+                    int a = i + j;
+                    int b = a + halfSize;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
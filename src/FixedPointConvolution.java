@@ -0,0 +1,205 @@
+import java.util.Arrays;
+
+// Kernels with integer taps (edge detection, sharpen, emboss, ...) summed in int instead of float.
+// The multiplier becomes (sum * scale) >> shift, checked against the float result for every sum
+// the kernel can produce, so the output is the same as Convolution.convolveDirect.
+public class FixedPointConvolution {
+
+    // Float sums of integer products are exact below 2^24, above that the float path rounds
+    private static final int EXACT_LIMIT = 1 << 24;
+
+    // Unpacked planes of one block stay in L2
+    private static final int BLOCK_WIDTH = 512;
+    private static final int BLOCK_HEIGHT = 32;
+
+    public static class Plan {
+
+        final float[][] kernel;
+        final float multiplier;
+        final int len;
+        // Non-zero taps only, integer sums do not depend on the order. Taps of equal weight
+        // (the mirrored taps of symmetric kernels) are paired by KernelPlan.taps as
+        // weight * (a + b), one multiply and one pass over the sums for both; dx2[t] is -1 when
+        // tap t has no partner.
+        final int[] weights, dx, dy, dx2, dy2;
+        final int scale, shift;
+
+        Plan(float[][] kernel, float multiplier, int len, int[] weights, int[] dx, int[] dy, int[] dx2, int[] dy2,
+                int scale, int shift) {
+            this.kernel = kernel;
+            this.multiplier = multiplier;
+            this.len = len;
+            this.weights = weights;
+            this.dx = dx;
+            this.dy = dy;
+            this.dx2 = dx2;
+            this.dy2 = dy2;
+            this.scale = scale;
+            this.shift = shift;
+        }
+    }
+
+    // Null when a tap is not an integer or no scale and shift reproduce the float multiplier.
+    // Not cached, KernelPlan compiles it once per kernel.
+    public static Plan plan(float[][] kernelMatrix, float multiplier) {
+        if (!isExact(kernelMatrix)) {
+            return null;
+        }
+        int len = kernelMatrix.length;
+        long positive = 0, negative = 0;
+        for (float[] row : kernelMatrix) {
+            for (float weight : row) {
+                if (weight > 0) {
+                    positive += (long) weight;
+                } else {
+                    negative += (long) weight;
+                }
+            }
+        }
+        // Reachable sums per channel
+        long maxSum = 255 * positive;
+        long minSum = 255 * negative;
+
+        int[][] taps = KernelPlan.taps(kernelMatrix, true);
+        int[] dx = taps[0], dy = taps[1], dx2 = taps[2], dy2 = taps[3];
+        int[] weights = new int[dx.length];
+        for (int t = 0; t < weights.length; t++) {
+            weights[t] = (int) kernelMatrix[dx[t]][dy[t]];
+        }
+
+        long largest = Math.max(maxSum, -minSum);
+        for (int shift = 0; shift < 31; shift++) {
+            long scale = Math.round(multiplier * (double) (1L << shift));
+            if (scale == 0 || largest * Math.abs(scale) > Integer.MAX_VALUE) {
+                continue;
+            }
+            if (matches(minSum, maxSum, multiplier, (int) scale, shift)) {
+                float[][] kernel = new float[len][];
+                for (int k = 0; k < len; k++) {
+                    kernel[k] = kernelMatrix[k].clone();
+                }
+                return new Plan(kernel, multiplier, len, weights, dx, dy, dx2, dy2, (int) scale, shift);
+            }
+        }
+        return null;
+    }
+
+    // Every tap is an integer and every sum a channel can reach is below 2^24, so float products
+    // and sums of the kernel are exact in any order
+    static boolean isExact(float[][] kernelMatrix) {
+        long positive = 0, negative = 0;
+        for (float[] row : kernelMatrix) {
+            for (float weight : row) {
+                if (weight != Math.rint(weight) || Math.abs(weight) >= EXACT_LIMIT) {
+                    return false;
+                }
+                if (weight > 0) {
+                    positive += (long) weight;
+                } else {
+                    negative += (long) weight;
+                }
+            }
+        }
+        return 255 * positive < EXACT_LIMIT && -255 * negative < EXACT_LIMIT;
+    }
+
+    // Every reachable sum gives the same channel value as the float cast and clamp
+    private static boolean matches(long minSum, long maxSum, float multiplier, int scale, int shift) {
+        for (int sum = (int) minSum; sum <= maxSum; sum++) {
+            if (channel(sum, scale, shift) != Math.min(Math.max((int) (sum * multiplier), 0), 255)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int channel(int sum, int scale, int shift) {
+        return Math.min(Math.max((sum * scale) >> shift, 0), 255);
+    }
+
+    private static void accumulate(int[] plane, int offset, int weight, int[] sum) {
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += plane[offset + i] * weight;
+        }
+    }
+
+    private static void accumulate(int[] plane, int offset, int offset2, int weight, int[] sum) {
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += (plane[offset + i] + plane[offset2 + i]) * weight;
+        }
+    }
+
+    // Same regions and wrap-around as Convolution.convolve
+    public static void convolve(int[] src, int[] dst, int width, int height, Plan plan, int x0, int y0, int x1,
+            int y1) {
+        for (int by = y0; by < y1; by += BLOCK_HEIGHT) {
+            for (int bx = x0; bx < x1; bx += BLOCK_WIDTH) {
+                convolveBlock(src, dst, width, height, plan, bx, by, Math.min(bx + BLOCK_WIDTH, x1),
+                        Math.min(by + BLOCK_HEIGHT, y1));
+            }
+        }
+    }
+
+    private static void convolveBlock(int[] src, int[] dst, int width, int height, Plan plan, int x0, int y0,
+            int x1, int y1) {
+
+        int len = plan.len;
+        int half = len / 2;
+        int regionWidth = x1 - x0;
+        int paddedWidth = regionWidth + len - 1;
+        int rowCount = y1 - y0 + len - 1;
+
+        // Planar copy of the wrapped source window
+        int[] red = new int[rowCount * paddedWidth];
+        int[] green = new int[rowCount * paddedWidth];
+        int[] blue = new int[rowCount * paddedWidth];
+        int[] columns = new int[paddedWidth];
+        for (int c = 0; c < paddedWidth; c++) {
+            columns[c] = Math.floorMod(x0 - half + c, width);
+        }
+        for (int r = 0; r < rowCount; r++) {
+            int row = Math.floorMod(y0 - half + r, height) * width;
+            int t = r * paddedWidth;
+            for (int c = 0; c < paddedWidth; c++) {
+                int rgb = src[row + columns[c]];
+                red[t + c] = (rgb >> 16) & 0xff;
+                green[t + c] = (rgb >> 8) & 0xff;
+                blue[t + c] = rgb & 0xff;
+            }
+        }
+
+        // Taps outside, pixels inside, one plain int multiply-add loop per tap and channel
+        int[] sumRed = new int[regionWidth];
+        int[] sumGreen = new int[regionWidth];
+        int[] sumBlue = new int[regionWidth];
+        int scale = plan.scale;
+        int shift = plan.shift;
+
+        for (int j = y0; j < y1; j++) {
+            int top = (j - y0) * paddedWidth;
+            Arrays.fill(sumRed, 0);
+            Arrays.fill(sumGreen, 0);
+            Arrays.fill(sumBlue, 0);
+            for (int t = 0; t < plan.weights.length; t++) {
+                int weight = plan.weights[t];
+                int p = top + plan.dy[t] * paddedWidth + plan.dx[t];
+                if (plan.dx2[t] < 0) {
+                    accumulate(red, p, weight, sumRed);
+                    accumulate(green, p, weight, sumGreen);
+                    accumulate(blue, p, weight, sumBlue);
+                } else {
+                    int p2 = top + plan.dy2[t] * paddedWidth + plan.dx2[t];
+                    accumulate(red, p, p2, weight, sumRed);
+                    accumulate(green, p, p2, weight, sumGreen);
+                    accumulate(blue, p, p2, weight, sumBlue);
+                }
+            }
+
+            int out = j * width + x0;
+            for (int i = 0; i < regionWidth; i++) {
+                dst[out + i] = (src[out + i] & 0xff000000) | channel(sumRed[i], scale, shift) << 16
+                        | channel(sumGreen[i], scale, shift) << 8 | channel(sumBlue[i], scale, shift);
+            }
+        }
+    }
+}
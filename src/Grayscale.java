@@ -0,0 +1,58 @@
+import java.awt.image.BufferedImage;
+
+// Gray images have the same value in red, green and blue, so the engines would compute every
+// channel three times. Instead the image is cut into three bands of rows which go into the red,
+// green and blue channel of one packed image a third of the height; any engine convolves that
+// with a third of the work and each channel gives the result of its band.
+public class Grayscale {
+
+    public interface Engine {
+        void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix, float multiplier);
+    }
+
+    public static boolean isGray(BufferedImage img) {
+        return img.getType() == BufferedImage.TYPE_BYTE_GRAY || img.getType() == BufferedImage.TYPE_USHORT_GRAY;
+    }
+
+    // src holds packed pixels with equal channels, as Convolution.getPixels returns them for a gray image
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier, Engine engine) {
+
+        int half = kernelMatrix.length / 2;
+        // Each band carries its own halo rows, the wrap-around of the packed image is never used
+        int bandRows = (height + 2) / 3;
+        int packedRows = bandRows + 2 * half;
+        if (packedRows >= height) {
+            engine.convolve(src, dst, width, height, kernelMatrix, multiplier);
+            return;
+        }
+
+        int[] packed = new int[packedRows * width];
+        for (int r = 0; r < packedRows; r++) {
+            int red = Math.floorMod(r - half, height) * width;
+            int green = Math.floorMod(bandRows + r - half, height) * width;
+            int blue = Math.floorMod(2 * bandRows + r - half, height) * width;
+            for (int i = 0, p = r * width; i < width; i++, p++) {
+                packed[p] = 0xff000000 | (src[red + i] & 0xff) << 16 | (src[green + i] & 0xff) << 8
+                        | (src[blue + i] & 0xff);
+            }
+        }
+
+        int[] result = new int[packedRows * width];
+        engine.convolve(packed, result, width, packedRows, kernelMatrix, multiplier);
+
+        for (int band = 0; band < 3; band++) {
+            int shift = 16 - 8 * band;
+            for (int r = half; r < half + bandRows; r++) {
+                int y = band * bandRows + r - half;
+                if (y >= height) {
+                    break;
+                }
+                for (int i = 0, p = r * width, out = y * width; i < width; i++, p++, out++) {
+                    int value = (result[p] >> shift) & 0xff;
+                    dst[out] = (src[out] & 0xff000000) | value << 16 | value << 8 | value;
+                }
+            }
+        }
+    }
+}
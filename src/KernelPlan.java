@@ -0,0 +1,207 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A kernel compiled once for the engines: the path it takes (box, separable, integer taps) is
+// decided here instead of on every tile, and the direct loops only visit the non-zero taps.
+public class KernelPlan {
+
+    // Plans of the kernels used last, keyed by contents. Several kernels in use at once (server
+    // requests with different box radii, a preview next to a full run) each keep their plan.
+    private static final int CACHED_PLANS = 16;
+    private static final Map<Key, KernelPlan> cached = new LinkedHashMap<Key, KernelPlan>(CACHED_PLANS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, KernelPlan> eldest) {
+            return size() > CACHED_PLANS;
+        }
+    };
+
+    final float[][] kernel;
+    final float multiplier;
+    final int len;
+    final boolean box;
+    // {x, y} weights of a rank-1 kernel, null otherwise
+    final float[][] separated;
+    // Null unless every tap is an integer and the multiplier works as multiply-and-shift
+    final FixedPointConvolution.Plan fixed;
+    // Integer taps whose sums are exact in float, the direct and fixed-point paths give the exact
+    // result for them and the FFT does not
+    final boolean exact;
+    // Non-zero taps; adding a zero product does not change a float sum, so dropping them keeps
+    // the output bit-identical. Taps [0, pairs) are pairs of equal weight read at dx, dy and
+    // dx2, dy2 and multiplied once, the rest are single taps.
+    final float[] weights;
+    final int[] dx, dy, dx2, dy2;
+    final int pairs;
+
+    private KernelPlan(float[][] kernel, float multiplier, boolean box, float[][] separated,
+            FixedPointConvolution.Plan fixed, boolean exact, float[] weights, int[][] taps) {
+        this.kernel = kernel;
+        this.multiplier = multiplier;
+        this.len = kernel.length;
+        this.box = box;
+        this.separated = separated;
+        this.fixed = fixed;
+        this.exact = exact;
+        this.weights = weights;
+        this.dx = taps[0];
+        this.dy = taps[1];
+        this.dx2 = taps[2];
+        this.dy2 = taps[3];
+        int pairs = 0;
+        while (pairs < dx2.length && dx2[pairs] >= 0) {
+            pairs++;
+        }
+        this.pairs = pairs;
+    }
+
+    // Registered kernels are compiled once, other matrices (box radii, preview kernels) on first use.
+    // Front ends that split an image in tiles look the plan up once and pass it to every tile.
+    public static KernelPlan of(float[][] kernelMatrix, float multiplier) {
+        Key key = new Key(kernelMatrix, multiplier);
+        synchronized (cached) {
+            KernelPlan plan = cached.get(key);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        KernelPlan plan = Kernels.find(kernelMatrix, multiplier);
+        if (plan == null) {
+            plan = compile(kernelMatrix, multiplier);
+        }
+        synchronized (cached) {
+            // The plan holds its own copy of the matrix, the caller may change the one it passed
+            cached.put(new Key(plan.kernel, multiplier), plan);
+        }
+        return plan;
+    }
+
+    private static final class Key {
+        private final float[][] kernel;
+        private final float multiplier;
+        private final int hash;
+
+        Key(float[][] kernel, float multiplier) {
+            this.kernel = kernel;
+            this.multiplier = multiplier;
+            this.hash = 31 * Arrays.deepHashCode(kernel) + Float.hashCode(multiplier);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).hash == hash && ((Key) other).multiplier == multiplier
+                    && Arrays.deepEquals(((Key) other).kernel, kernel);
+        }
+    }
+
+    public static KernelPlan compile(float[][] kernelMatrix, float multiplier) {
+        int len = kernelMatrix.length;
+        float[][] kernel = new float[len][];
+        for (int k = 0; k < len; k++) {
+            kernel[k] = kernelMatrix[k].clone();
+        }
+
+        // w * a + w * b only rounds like w * (a + b) when every sum is exact, so equal taps are
+        // merged for integer kernels and the others keep the k, l order of the original loops
+        boolean exact = FixedPointConvolution.isExact(kernel);
+        int[][] taps = taps(kernel, exact);
+        float[] weights = new float[taps[0].length];
+        for (int t = 0; t < weights.length; t++) {
+            weights[t] = kernel[taps[0][t]][taps[1][t]];
+        }
+
+        return new KernelPlan(kernel, multiplier, len > 1 && Kernels.isBox(kernel), Kernels.separate(kernel),
+                FixedPointConvolution.plan(kernel, multiplier), exact, weights, taps);
+    }
+
+    // Non-zero taps as {dx, dy, dx2, dy2}. With merge every tap is paired with the next unpaired
+    // tap of the same weight and the pairs come first, dx2 and dy2 are -1 for a tap left alone.
+    // Within both groups the taps keep the k, l order.
+    static int[][] taps(float[][] kernel, boolean merge) {
+        int len = kernel.length;
+        // Position of the partner of every tap, -1 without one, -2 for the second tap of a pair
+        int[] partner = new int[len * len];
+        Arrays.fill(partner, -1);
+        Map<Float, Integer> waiting = new HashMap<>();
+        int count = 0;
+        int pairCount = 0;
+        for (int q = 0; q < len * len; q++) {
+            float weight = kernel[q / len][q % len];
+            if (weight == 0) {
+                continue;
+            }
+            Integer first = merge ? waiting.remove(weight) : null;
+            if (first != null) {
+                partner[first] = q;
+                partner[q] = -2;
+                pairCount++;
+            } else {
+                if (merge) {
+                    waiting.put(weight, q);
+                }
+                count++;
+            }
+        }
+
+        int[][] taps = new int[4][count];
+        int pair = 0;
+        int single = pairCount;
+        for (int q = 0; q < len * len; q++) {
+            if (kernel[q / len][q % len] == 0 || partner[q] == -2) {
+                continue;
+            }
+            int t = partner[q] >= 0 ? pair++ : single++;
+            taps[0][t] = q / len;
+            taps[1][t] = q % len;
+            taps[2][t] = partner[q] >= 0 ? partner[q] / len : -1;
+            taps[3][t] = partner[q] >= 0 ? partner[q] % len : -1;
+        }
+        return taps;
+    }
+
+    boolean matches(float[][] kernelMatrix, float multiplier) {
+        return this.multiplier == multiplier && Arrays.deepEquals(kernel, kernelMatrix);
+    }
+
+    public float[][] getKernel() {
+        return kernel;
+    }
+
+    public float getMultiplier() {
+        return multiplier;
+    }
+
+    public int getSize() {
+        return len;
+    }
+
+    public boolean isBox() {
+        return box;
+    }
+
+    public boolean isSeparable() {
+        return separated != null;
+    }
+
+    public boolean isIntegral() {
+        return fixed != null;
+    }
+
+    // Non-zero taps, a pair counts twice
+    public int getTaps() {
+        return weights.length + pairs;
+    }
+
+    @Override
+    public String toString() {
+        return len + "x" + len + ", " + getTaps() + " taps" + (pairs > 0 ? " in " + weights.length + " multiplies" : "")
+                + (box ? ", box" : "")
+                + (separated != null ? ", separable" : "") + (fixed != null ? ", integer" : "");
+    }
+}
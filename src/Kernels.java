@@ -1,4 +1,13 @@
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class Kernels {
 
 	public static float[][] edge_detection ={
@@ -23,19 +32,204 @@ public class Kernels {
             {0, 1, 2}
     };
     
+    // Kernels by name in registration order, each compiled once into the plan the engines run
+    private static final Map<String, KernelPlan> registry = new LinkedHashMap<>();
+
+    static {
+        register("edge_detection", edge_detection, 1f);
+        register("sharpen", sharpen, 1f);
+        register("box_blur", blur, 1f / 9f);
+        register("emboss", emboss, 1f);
+
+        // -Dkernels=<file> adds the kernels of a definition file, see load
+        String file = System.getProperty("kernels");
+        if (file != null) {
+            try {
+                load(new File(file));
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Could not load kernels from " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static synchronized KernelPlan register(String name, float[][] kernelMatrix, float multiplier) {
+        int len = kernelMatrix.length;
+        if (len % 2 == 0) {
+            throw new IllegalArgumentException("Kernel " + name + " is " + len + " wide, it has to be odd");
+        }
+        for (float[] row : kernelMatrix) {
+            if (row.length != len) {
+                throw new IllegalArgumentException("Kernel " + name + " is not square");
+            }
+        }
+        KernelPlan plan = KernelPlan.compile(kernelMatrix, multiplier);
+        registry.put(name, plan);
+        return plan;
+    }
+
+    // Null for a name that was never registered
+    public static synchronized KernelPlan get(String name) {
+        return registry.get(name);
+    }
+
+    public static synchronized List<String> names() {
+        return new ArrayList<>(registry.keySet());
+    }
+
+    // Registered plan with exactly this matrix and multiplier, or null
+    static synchronized KernelPlan find(float[][] kernelMatrix, float multiplier) {
+        for (KernelPlan plan : registry.values()) {
+            if (plan.matches(kernelMatrix, multiplier)) {
+                return plan;
+            }
+        }
+        return null;
+    }
+
+    // Unknown names fall back to edge detection
     public static float[][] getKernelMatrix(String s) {
-        switch (s) {
-            case "edge_detection":
-                return edge_detection;                
-            case "sharpen":
-                return sharpen;            
-            case "box_blur":
-                return blur;
-            case "emboss":
-                return emboss;
-            default:
-                return edge_detection;
+        KernelPlan plan = get(s);
+        return plan != null ? plan.kernel : edge_detection;
+    }
+
+    // Factor applied to the weighted sum, only the blur is normalised
+    public static float getMultiplier(String s) {
+        KernelPlan plan = get(s);
+        return plan != null ? plan.multiplier : 1f;
+    }
+
+    // Definition file, one or more kernels of the form
+    //
+    //   # comment
+    //   gaussian 1/16
+    //   1 2 1
+    //   2 4 2
+    //   1 2 1
+    //
+    // The name is followed by an optional multiplier (a number or a fraction), then N rows of
+    // N numbers with N odd. Rows of the file are rows of the image.
+    public static List<String> load(File file) throws IOException {
+        return define(String.join("\n", Files.readAllLines(file.toPath())));
+    }
+
+    public static synchronized List<String> define(String definition) {
+        List<String> names = new ArrayList<>();
+        String name = null;
+        float multiplier = 1f;
+        List<float[]> rows = new ArrayList<>();
+
+        for (String line : definition.split("\\R")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if (name == null) {
+                name = tokens[0];
+                multiplier = tokens.length > 1 ? parseNumber(tokens[1]) : 1f;
+                continue;
+            }
+            float[] row = new float[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                row[i] = parseNumber(tokens[i]);
+            }
+            if (!rows.isEmpty() && row.length != rows.get(0).length) {
+                throw new IllegalArgumentException("Kernel " + name + ": rows of different length");
+            }
+            rows.add(row);
+
+            if (rows.size() == row.length) {
+                // kernelMatrix[k][l] is column k, row l
+                int len = row.length;
+                float[][] kernelMatrix = new float[len][len];
+                for (int l = 0; l < len; l++) {
+                    for (int k = 0; k < len; k++) {
+                        kernelMatrix[k][l] = rows.get(l)[k];
+                    }
+                }
+                register(name, kernelMatrix, multiplier);
+                names.add(name);
+                name = null;
+                rows.clear();
+            }
+        }
+        if (name != null) {
+            throw new IllegalArgumentException("Kernel " + name + " is incomplete");
         }
+        return names;
     }
-    
+
+    private static float parseNumber(String token) {
+        try {
+            int slash = token.indexOf('/');
+            if (slash > 0) {
+                return Float.parseFloat(token.substring(0, slash)) / Float.parseFloat(token.substring(slash + 1));
+            }
+            return Float.parseFloat(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + token);
+        }
+    }
+
+    // Square kernel of ones, used with multiplier 1 / size^2 as a box (mean) filter
+    public static float[][] box(int radius) {
+        int size = 2 * radius + 1;
+        float[][] kernel = new float[size][size];
+        for (float[] row : kernel) {
+            Arrays.fill(row, 1f);
+        }
+        return kernel;
+    }
+
+    // True when every tap has the same weight, which BoxFilter handles with running sums
+    public static boolean isBox(float[][] kernelMatrix) {
+        float weight = kernelMatrix[0][0];
+        for (float[] row : kernelMatrix) {
+            for (float value : row) {
+                if (value != weight) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Splits a rank-1 kernel into kernelMatrix[k][l] = x[k] * y[l], returns {x, y} or null
+    public static float[][] separate(float[][] kernelMatrix) {
+        int len = kernelMatrix.length;
+
+        // Largest entry as pivot keeps the division well conditioned
+        int pk = 0, pl = 0;
+        float max = 0f;
+        for (int k = 0; k < len; k++) {
+            for (int l = 0; l < len; l++) {
+                if (Math.abs(kernelMatrix[k][l]) > max) {
+                    max = Math.abs(kernelMatrix[k][l]);
+                    pk = k;
+                    pl = l;
+                }
+            }
+        }
+        if (max == 0f) {
+            return null;
+        }
+
+        float[] x = new float[len];
+        float[] y = new float[len];
+        for (int i = 0; i < len; i++) {
+            x[i] = kernelMatrix[i][pl];
+            y[i] = kernelMatrix[pk][i] / kernelMatrix[pk][pl];
+        }
+
+        float tolerance = max * 1e-6f;
+        for (int k = 0; k < len; k++) {
+            for (int l = 0; l < len; l++) {
+                if (Math.abs(kernelMatrix[k][l] - x[k] * y[l]) > tolerance) {
+                    return null;
+                }
+            }
+        }
+        return new float[][] { x, y };
+    }
+
 }
@@ -2,23 +2,37 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
-
 public class Main {
 
+	// Results of earlier Apply clicks, -Dcache.dir=<directory> adds a disk tier
+	public static final ResultCache cache = new ResultCache(256L * 1024 * 1024,
+			System.getProperty("cache.dir") != null ? new File(System.getProperty("cache.dir")) : null);
+
 	public static void main(String []args) {
 		new MainWindow();
 		
 	}
 
-	public static void finishSeq(BufferedImage output, long timeElapsed) throws IOException {
+	// The result is encoded in the background by the output sink (-Doutput, see OutputSink), the
+	// timings are printed once the encode is done
+	public static void finishSeq(BufferedImage output, Metrics metrics) throws IOException {
 
 		//Kamor se shrani slika
-		String fileOutputPath = "src/Temp/temp";
-        ImageIO.write(output, "jpg", new File(fileOutputPath + ".jpg"));
+		OutputSink sink = OutputSink.getDefault();
+		sink.write(output, metrics);
         MainWindow.processedImage = output;
-
-        System.out.println("Time elapsed: " + timeElapsed + " ms");
+        Metrics.setLast(metrics);
+
+        // Whole run including decode and encode, the phases follow
+        sink.after(() -> {
+            System.out.println("Time elapsed: " + metrics.total() / 1000000 + " ms");
+            metrics.print();
+            try {
+                Metrics.export(metrics);
+            } catch (IOException e) {
+                System.err.println("Failed to save metrics: " + e.getMessage());
+            }
+        });
 
     }
 
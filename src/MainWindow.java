@@ -4,8 +4,9 @@ import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -20,18 +21,21 @@ public class MainWindow extends JFrame {
 
 	private String Path1;
 
-	private JMenuItem kernel1;
-	private JMenuItem kernel2;
-	private JMenuItem kernel3;
-	private JMenuItem kernel4;
+	private JMenu kernelMenu;
 	// private int setKernel;
 	private JButton applyButton;
+	private JButton cancelButton;
+	private JButton exportButton;
+	private JCheckBox previewBox;
+	private ConvolutionWorker worker;
 	private JLabel img1Text;
 	private JLabel img2Text;
 	private JLabel img1;
 	private JLabel img2;
+	private JLabel metricsText;
 	private JRadioButton sequentialButton;
 	private JRadioButton parallelButton;
+	private JRadioButton vectorButton;
 	private ButtonGroup processingGroup;
 
 	public MainWindow() {
@@ -49,27 +53,17 @@ public class MainWindow extends JFrame {
 
 		JMenuBar MenuBar = new JMenuBar();
 		JMenu Menu = new JMenu("Menu");
-		JMenu subMenu = new JMenu("Kernels");
+		kernelMenu = new JMenu("Kernels");
 		JMenuItem select = new JMenuItem("Select File");
 		select.addActionListener(e -> selectImage(e));
-
-		kernel1 = new JMenuItem("Edge detection");
-		kernel2 = new JMenuItem("Sharpen");
-		kernel3 = new JMenuItem("Blur");
-		kernel4 = new JMenuItem("Emboss");
-
-		kernel1.addActionListener(e -> setKernel1());
-		kernel2.addActionListener(e -> setKernel2());
-		kernel3.addActionListener(e -> setKernel3());
-		kernel4.addActionListener(e -> setKernel4());
+		JMenuItem load = new JMenuItem("Load kernels...");
+		load.addActionListener(e -> loadKernels());
+		fillKernelMenu();
 
 		MenuBar.add(Menu);
-		subMenu.add(kernel1);
-		subMenu.add(kernel2);
-		subMenu.add(kernel3);
-		subMenu.add(kernel4);
 		Menu.add(select);
-		Menu.add(subMenu);
+		Menu.add(kernelMenu);
+		Menu.add(load);
 		this.setJMenuBar(MenuBar);
 
 		JPanel panel = new JPanel();
@@ -83,23 +77,17 @@ public class MainWindow extends JFrame {
 		img2.setBorder(BorderFactory.createLineBorder(Color.GRAY));
 		img2.setPreferredSize(new Dimension(300, 300));
 
+		// With Preview checked Apply only convolves a proxy at the display size, Export always runs
+		// at full resolution and writes the result through the output sink (src/Temp/temp.jpg by default)
 		applyButton = new JButton("Apply");
-		applyButton.addActionListener(e -> {
-			try {
-				if (kernelMatrix == null) {
-					setKernel1();
-				}
-				if (sequentialButton.isSelected()) {
-					Sequential.convolution(Path1, kernelMatrix, fac);
-					insertImg("src/Temp/temp.jpg", img2);
-				} else if (parallelButton.isSelected()) {
-					parallel.convolution(Path1, kernelMatrix, fac);
-					insertImg("src/Temp/temp.jpg", img2);
-				}
-			} catch (IOException ex) {
-				throw new RuntimeException(ex);
-			}
-		});
+		applyButton.addActionListener(e -> startRun(previewBox.isSelected()));
+		exportButton = new JButton("Export");
+		exportButton.addActionListener(e -> startRun(false));
+		previewBox = new JCheckBox("Preview", true);
+
+		cancelButton = new JButton("Cancel");
+		cancelButton.setEnabled(false);
+		cancelButton.addActionListener(e -> cancelRun());
 		panel.add(img1Text);
 		panel.add(img1);
 		panel.add(img2Text);
@@ -109,16 +97,19 @@ public class MainWindow extends JFrame {
 
 		sequentialButton = new JRadioButton("Sequential", true);
 		parallelButton = new JRadioButton("Parallel");
+		vectorButton = new JRadioButton("Vector (SIMD)");
 
 		processingGroup = new ButtonGroup();
 
 		processingGroup.add(sequentialButton);
 		processingGroup.add(parallelButton);
+		processingGroup.add(vectorButton);
 
 		JPanel radioPanel = new JPanel();
 
 		radioPanel.add(sequentialButton);
 		radioPanel.add(parallelButton);
+		radioPanel.add(vectorButton);
 
 		panel.setLayout(new BorderLayout());
 		panel.add(radioPanel, BorderLayout.NORTH);
@@ -132,7 +123,12 @@ public class MainWindow extends JFrame {
 
 		panel.add(imagesPanel, BorderLayout.CENTER);
 		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(previewBox);
 		buttonPanel.add(applyButton);
+		buttonPanel.add(exportButton);
+		buttonPanel.add(cancelButton);
+		metricsText = new JLabel(" ");
+		buttonPanel.add(metricsText);
 		panel.add(buttonPanel, BorderLayout.SOUTH);
 		this.add(panel);
 
@@ -143,11 +139,186 @@ public class MainWindow extends JFrame {
 	}
 
 	public static void insertImg(String Path, JLabel label) {
-		ImageIcon icon = new ImageIcon(new ImageIcon(Path).getImage().getScaledInstance(label.getWidth(),
-				label.getHeight(), Image.SCALE_SMOOTH));
+		insertImg(new ImageIcon(Path).getImage(), label, Image.SCALE_SMOOTH);
+	}
+
+	public static void insertImg(Image image, JLabel label, int hints) {
+		ImageIcon icon = new ImageIcon(image.getScaledInstance(label.getWidth(), label.getHeight(), hints));
 		label.setIcon(icon);
 	}
 
+	private void startRun(boolean preview) {
+		if (Path1 == null) {
+			System.out.println("Select a file first.");
+			return;
+		}
+		if (kernelMatrix == null) {
+			setKernel("edge_detection");
+		}
+		// A new run replaces one that is still going
+		cancelRun();
+		String mode = parallelButton.isSelected() ? "parallel" : vectorButton.isSelected() ? "vector" : "sequential";
+		worker = new ConvolutionWorker(Path1, kernelMatrix, fac, preview ? "preview" : mode);
+		cancelButton.setEnabled(true);
+		metricsText.setText("Running...");
+		worker.execute();
+	}
+
+	private void cancelRun() {
+		if (worker != null && !worker.isDone()) {
+			worker.cancel(false);
+		}
+	}
+
+	// Runs the convolution off the event thread. Finished tiles are written straight into the
+	// result image and the "After" label is repainted from it while the rest is still running.
+	private class ConvolutionWorker extends SwingWorker<BufferedImage, Rectangle> {
+
+		// Rows per step, also how often the modes check for Cancel
+		private static final int BAND_ROWS = 32;
+		// Repainting scales the whole image, so not after every tile
+		private static final long REPAINT_MILLIS = 100;
+
+		private final String path;
+		private final float[][] kernel;
+		private final float multiplier;
+		private final String mode;
+		private BufferedImage result;
+		private long lastRepaint;
+
+		ConvolutionWorker(String path, float[][] kernel, float multiplier, String mode) {
+			this.path = path;
+			this.kernel = kernel;
+			this.multiplier = multiplier;
+			this.mode = mode;
+		}
+
+		@Override
+		protected BufferedImage doInBackground() throws Exception {
+			if (mode.equals("preview")) {
+				Metrics metrics = new Metrics(mode);
+				long t = System.nanoTime();
+				result = Preview.preview(path, img2.getWidth(), img2.getHeight(), kernel, multiplier);
+				metrics.record("compute", t);
+				metrics.addPixels((long) result.getWidth() * result.getHeight());
+				Metrics.setLast(metrics);
+				return result;
+			}
+
+			// Same file, kernel and factor as an earlier run: no decode and no convolution
+			String key = ResultCache.key(new File(path), kernel, multiplier);
+			BufferedImage cached = Main.cache.get(key);
+			if (cached != null) {
+				result = cached;
+				Main.finishSeq(cached, new Metrics("cache"));
+				return cached;
+			}
+
+			Metrics metrics = new Metrics(mode);
+			long t = System.nanoTime();
+			BufferedImage source = RawImage.read(new File(path));
+			t = metrics.record("decode", t);
+
+			int width = source.getWidth();
+			int height = source.getHeight();
+			int type = source.getType() != BufferedImage.TYPE_CUSTOM ? source.getType()
+					: source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+			int[] src = Convolution.getPixels(source);
+			int[] dst = new int[width * height];
+			result = new BufferedImage(width, height, type);
+			t = metrics.record("unpack", t);
+
+			if (Grayscale.isGray(source)) {
+				// The bands of a gray image are packed into one third of the rows, so the result only
+				// appears once it is complete
+				Grayscale.convolve(src, dst, width, height, kernel, multiplier, mode.equals("parallel")
+						? parallel::convolve
+						: mode.equals("vector")
+								? (s, d, w, h, k, m) -> Vectorized.convolve(s, d, w, h, k, m, 0, 0, w, h)
+								: Convolution::convolve);
+				Convolution.setPixels(result, dst);
+				publish(new Rectangle(0, 0, width, height));
+			} else {
+				// Bands of whole rows, each written to the raster by its own thread with the fast
+				// setPixels path
+				KernelPlan plan = KernelPlan.of(kernel, multiplier);
+				TileScheduler.TileTask band = (x0, y0, x1, y1) -> {
+					if (isCancelled()) {
+						return;
+					}
+					if (mode.equals("vector")) {
+						Vectorized.convolve(src, dst, width, height, plan, x0, y0, x1, y1);
+					} else {
+						Convolution.convolve(src, dst, width, height, plan, x0, y0, x1, y1);
+					}
+					Convolution.setPixels(result, dst, y0, y1);
+					publish(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+				};
+				int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+				if (mode.equals("parallel")) {
+					parallel.getScheduler().forEach(bands, b -> band.run(0, b * BAND_ROWS, width,
+							Math.min((b + 1) * BAND_ROWS, height)));
+				} else {
+					for (int y = 0; y < height && !isCancelled(); y += BAND_ROWS) {
+						band.run(0, y, width, Math.min(y + BAND_ROWS, height));
+					}
+				}
+			}
+			if (isCancelled()) {
+				return null;
+			}
+			metrics.record("compute", t);
+			metrics.addPixels((long) width * height);
+
+			Main.cache.put(key, result);
+			Main.finishSeq(result, metrics);
+			return result;
+		}
+
+		@Override
+		protected void process(List<Rectangle> tiles) {
+			long now = System.currentTimeMillis();
+			if (!isCancelled() && now - lastRepaint >= REPAINT_MILLIS) {
+				lastRepaint = now;
+				insertImg(result, img2, Image.SCALE_FAST);
+			}
+		}
+
+		@Override
+		protected void done() {
+			if (worker == this) {
+				cancelButton.setEnabled(false);
+			}
+			if (isCancelled()) {
+				if (worker == this) {
+					metricsText.setText("Cancelled");
+				}
+				return;
+			}
+			try {
+				insertImg(get(), img2, Image.SCALE_SMOOTH);
+				showMetrics();
+			} catch (InterruptedException | ExecutionException ex) {
+				System.out.println("Convolution failed: " + ex.getCause());
+				metricsText.setText("Failed: " + ex.getCause());
+			}
+		}
+	}
+
+	// Throughput and phase times of the last run
+	private void showMetrics() {
+		Metrics metrics = Metrics.getLast();
+		if (metrics == null) {
+			return;
+		}
+		metricsText.setText(String.format(
+				"%.1f MPix/s   compute %d ms   decode %d ms   encode %d ms   total %d ms   cache %d/%d hits",
+				metrics.megapixelsPerSecond(), metrics.get("compute") / 1000000, metrics.get("decode") / 1000000,
+				metrics.get("encode") / 1000000, metrics.total() / 1000000,
+				Main.cache.getHits() + Main.cache.getDiskHits(),
+				Main.cache.getHits() + Main.cache.getDiskHits() + Main.cache.getMisses()));
+	}
+
 	private void selectImage(ActionEvent e) {
 		FileChooser.addChoosableFileFilter(
 				new FileNameExtensionFilter("Images (.jpg, .jpeg, .png)", "jpg", "jpeg", "png"));
@@ -156,34 +327,86 @@ public class MainWindow extends JFrame {
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
 			File file = FileChooser.getSelectedFile();
 			Path1 = file.getAbsolutePath();
-			insertImg(Path1, img1);
+			// The preview proxy doubles as the "Before" image and is ready for the first Apply. It
+			// decodes the whole file, which takes seconds on large images, so not on the event thread.
+			String path = Path1;
+			int width = img1.getWidth();
+			int height = img1.getHeight();
+			new SwingWorker<BufferedImage, Void>() {
+				@Override
+				protected BufferedImage doInBackground() throws IOException {
+					return Preview.proxy(path, width, height);
+				}
+
+				@Override
+				protected void done() {
+					// Another file may have been picked in the meantime
+					if (!path.equals(Path1)) {
+						return;
+					}
+					try {
+						insertImg(get(), img1, Image.SCALE_SMOOTH);
+					} catch (InterruptedException | ExecutionException ex) {
+						System.out.println("Could not read " + path + ": " + ex.getCause());
+					}
+				}
+			}.execute();
 		} else {
 			System.out.println("File access cancelled.");
 		}
 	}
 
-	private void setKernel1() {
-		kernelMatrix = Kernels.edge_detection;
-
-		fac = 1;
+	// One entry per registered kernel, then the box blur with a radius of choice
+	private void fillKernelMenu() {
+		kernelMenu.removeAll();
+		for (String name : Kernels.names()) {
+			JMenuItem item = new JMenuItem(Character.toUpperCase(name.charAt(0)) + name.substring(1).replace('_', ' '));
+			// A different kernel makes the running result useless
+			item.addActionListener(e -> { cancelRun(); setKernel(name); });
+			kernelMenu.add(item);
+		}
+		JMenuItem box = new JMenuItem("Box blur, radius...");
+		box.addActionListener(e -> { cancelRun(); setBoxKernel(); });
+		kernelMenu.add(box);
 	}
 
-	private void setKernel2() {
-		kernelMatrix = Kernels.sharpen;
-
-		fac = 1;
+	// Definition file with more kernels, see Kernels.load for the format
+	private void loadKernels() {
+		JFileChooser chooser = new JFileChooser(new File("."));
+		chooser.setDialogTitle("Load kernels");
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		try {
+			System.out.println("Loaded kernels " + Kernels.load(chooser.getSelectedFile()));
+			fillKernelMenu();
+		} catch (IOException | IllegalArgumentException ex) {
+			System.out.println("Could not load kernels: " + ex.getMessage());
+		}
 	}
 
-	private void setKernel3() {
-		kernelMatrix = Kernels.blur;
+	private void setKernel(String name) {
+		kernelMatrix = Kernels.getKernelMatrix(name);
 
-		fac = 1f / 9f;
+		fac = Kernels.getMultiplier(name);
 	}
 
-	private void setKernel4() {
-		kernelMatrix = Kernels.emboss;
+	private void setBoxKernel() {
+		String input = JOptionPane.showInputDialog(this, "Box blur radius (1-50):", "5");
+		if (input == null) {
+			return;
+		}
+		int radius;
+		try {
+			radius = Math.min(Math.max(Integer.parseInt(input.trim()), 1), 50);
+		} catch (NumberFormatException ex) {
+			System.out.println("Invalid radius: " + input);
+			return;
+		}
+		int size = 2 * radius + 1;
+		kernelMatrix = Kernels.box(radius);
 
-		fac = 1;
+		fac = 1f / (size * size);
 	}
 
 }
@@ -0,0 +1,167 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+// Where results go. Images are encoded on a thread of the sink in the order they were written, so
+// the caller goes on with the next job while the last one is encoded. The destination picks the
+// format by extension; PPM and RAW are written in parallel stripes, the other formats by ImageIO.
+//
+//   -Doutput=src/Temp/temp.jpg    destination, {n} is replaced by the number of the write
+//   -Doutput=none                 results are only kept in memory (getLast)
+//   -Doutput.quality=0.9          JPEG / PNG compression quality, writer default otherwise
+public class OutputSink {
+
+    public static final String DEFAULT_OUTPUT = "src/Temp/temp.jpg";
+
+    // Stripes are not made thinner than this, smaller mappings cost more than they save
+    private static final int STRIPE_ROWS = 64;
+
+    private static OutputSink defaultSink;
+
+    private final String destination;
+    private final float quality;
+    private final ExecutorService encoder;
+    private TileScheduler stripes;
+    private int count;
+    private volatile BufferedImage last;
+
+    // destination null keeps the results in memory, quality below 0 uses the writer default
+    public OutputSink(String destination, float quality) {
+        this.destination = destination;
+        this.quality = quality;
+        this.encoder = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "output-sink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Queued images are still written when main returns or System.exit is called
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }));
+    }
+
+    public static synchronized OutputSink getDefault() {
+        if (defaultSink == null) {
+            String output = System.getProperty("output", DEFAULT_OUTPUT);
+            defaultSink = new OutputSink(output.equals("none") ? null : output,
+                    Float.parseFloat(System.getProperty("output.quality", "-1")));
+        }
+        return defaultSink;
+    }
+
+    public BufferedImage getLast() {
+        return last;
+    }
+
+    // Queues the image and returns at once, the future gives the file once it is written (null
+    // for an in-memory sink). The encode phase is added to metrics when it is done.
+    public synchronized Future<File> write(BufferedImage image, Metrics metrics) {
+        last = image;
+        if (destination == null) {
+            return encoder.submit(() -> null);
+        }
+        File file = new File(destination.replace("{n}", String.valueOf(count++)));
+        return encoder.submit(() -> {
+            long t = System.nanoTime();
+            try {
+                encode(image, file);
+            } catch (IOException e) {
+                System.err.println("Could not write " + file + ": " + e.getMessage());
+                throw e;
+            }
+            metrics.record("encode", t);
+            return file;
+        });
+    }
+
+    // Runs task on the encoder thread once everything written so far is encoded
+    public void after(Runnable task) {
+        encoder.execute(task);
+    }
+
+    // Waits until everything written so far is encoded
+    public void flush() throws IOException {
+        try {
+            encoder.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void encode(BufferedImage image, File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".ppm") || name.endsWith(".raw")) {
+            encodeStripes(image, file);
+            return;
+        }
+        if (RawImage.isRaw(name)) {
+            RawImage.write(image, file);
+            return;
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(name.substring(name.lastIndexOf('.') + 1));
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for " + file);
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (quality >= 0 && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(quality);
+        }
+        file.delete();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Every stripe of rows maps and fills its own part of the file
+    private void encodeStripes(BufferedImage image, File file) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = Convolution.getPixels(image);
+        synchronized (this) {
+            if (stripes == null) {
+                stripes = new TileScheduler(Runtime.getRuntime().availableProcessors());
+            }
+        }
+        int parts = Math.max(1, Math.min(stripes.getParallelism(), height / STRIPE_ROWS));
+        try (RawImage raw = RawImage.create(file, width, height)) {
+            stripes.forEach(parts, s -> {
+                int y0 = (int) ((long) height * s / parts);
+                int y1 = (int) ((long) height * (s + 1) / parts);
+                try {
+                    raw.writeRows(y0, y1 - y0, pixels, y0 * width);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
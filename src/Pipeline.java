@@ -0,0 +1,105 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Chain of kernels applied one after another, fused per tile: every tile reads its source window
+// once and runs all stages in tile-sized buffers, no full-size intermediate image is created.
+public class Pipeline {
+
+    // Compiled when the stage is added, every tile runs from these plans
+    private final List<KernelPlan> stages = new ArrayList<>();
+
+    // java Pipeline <image> <kernel> [kernel...], e.g. java Pipeline src/Images/300x300.jpg sharpen emboss
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: Pipeline <image> <edge_detection|sharpen|box_blur|emboss> [kernel...]");
+            return;
+        }
+        Pipeline pipeline = new Pipeline();
+        for (int i = 1; i < args.length; i++) {
+            pipeline.add(args[i]);
+        }
+        pipeline.convolution(args[0]);
+    }
+
+    public Pipeline add(String kernel) {
+        return add(Kernels.getKernelMatrix(kernel), Kernels.getMultiplier(kernel));
+    }
+
+    public Pipeline add(float[][] kernelMatrix, float multiplier) {
+        stages.add(KernelPlan.of(kernelMatrix, multiplier));
+        return this;
+    }
+
+    // Rows (and columns) of source needed around an output pixel, the sum of the stage halos
+    public int halo() {
+        int halo = 0;
+        for (KernelPlan stage : stages) {
+            halo += stage.getSize() / 2;
+        }
+        return halo;
+    }
+
+    public void convolution(String fileLocation) throws IOException {
+
+        Metrics metrics = new Metrics("pipeline");
+        long t = System.nanoTime();
+        BufferedImage img1 = RawImage.read(new File(fileLocation));
+        t = metrics.record("decode", t);
+        int width = img1.getWidth();
+        int height = img1.getHeight();
+
+        BufferedImage img2 = new BufferedImage(width, height, img1.getType());
+
+        int[] source = Convolution.getPixels(img1);
+        int[] result = new int[width * height];
+        t = metrics.record("unpack", t);
+
+        convolve(source, result, width, height);
+        t = metrics.record("compute", t);
+        metrics.addPixels((long) width * height);
+
+        Convolution.setPixels(img2, result);
+        metrics.record("pack", t);
+        Main.finishSeq(img2, metrics);
+    }
+
+    // Same result as running the stages one by one over the whole image, edges wrap at every stage
+    public void convolve(int[] src, int[] dst, int width, int height) {
+        parallel.getScheduler().run(width, height, 2 * halo() + 1,
+                (x0, y0, x1, y1) -> convolve(src, dst, width, height, x0, y0, x1, y1));
+    }
+
+    public void convolve(int[] src, int[] dst, int width, int height, int x0, int y0, int x1, int y1) {
+        int halo = halo();
+        int tileWidth = x1 - x0 + 2 * halo;
+        int tileHeight = y1 - y0 + 2 * halo;
+
+        // Wrapped source window of the tile, then each stage shrinks the valid area by its own halo
+        int[] in = new int[tileWidth * tileHeight];
+        int[] out = new int[tileWidth * tileHeight];
+        for (int r = 0; r < tileHeight; r++) {
+            int row = Math.floorMod(y0 - halo + r, height) * width;
+            for (int c = 0; c < tileWidth; c++) {
+                in[r * tileWidth + c] = src[row + Math.floorMod(x0 - halo + c, width)];
+            }
+        }
+
+        int done = 0;
+        for (KernelPlan stage : stages) {
+            done += stage.getSize() / 2;
+            // The stage region stays inside the buffer, so the engines never wrap here
+            Convolution.convolve(in, out, tileWidth, tileHeight, stage, done, done, tileWidth - done,
+                    tileHeight - done);
+            int[] swap = in;
+            in = out;
+            out = swap;
+        }
+
+        for (int r = 0; r < y1 - y0; r++) {
+            System.arraycopy(in, (r + halo) * tileWidth + halo, dst, (y0 + r) * width + x0, x1 - x0);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Convolution of a small proxy for the on-screen view. The proxy is decoded with ImageIO
+// subsampling at about the display size and kept, so trying other kernels only costs the
+// convolution of a few hundred thousand pixels.
+public class Preview {
+
+    // Proxy of the last file, with the subsampling step it was read with
+    private static String cachedKey;
+    private static BufferedImage cachedProxy;
+    private static int cachedStep;
+
+    // Largest step that still leaves the proxy at least as large as the display
+    public static int subsampling(int width, int height, int displayWidth, int displayHeight) {
+        return Math.max(1, Math.min(width / Math.max(displayWidth, 1), height / Math.max(displayHeight, 1)));
+    }
+
+    public static synchronized BufferedImage proxy(String fileLocation, int displayWidth, int displayHeight)
+            throws IOException {
+        File file = new File(fileLocation);
+        String key = file.getAbsolutePath() + ":" + file.lastModified() + ":" + displayWidth + "x" + displayHeight;
+        if (key.equals(cachedKey)) {
+            return cachedProxy;
+        }
+
+        // PPM / PGM / RAW have no ImageIO reader, they are mapped whole and every step-th pixel kept
+        if (RawImage.isRaw(fileLocation)) {
+            BufferedImage image = RawImage.read(file);
+            int step = subsampling(image.getWidth(), image.getHeight(), displayWidth, displayHeight);
+            BufferedImage proxy = new BufferedImage((image.getWidth() + step - 1) / step,
+                    (image.getHeight() + step - 1) / step, image.getType());
+            WritableRaster source = image.getRaster();
+            WritableRaster target = proxy.getRaster();
+            Object pixel = null;
+            for (int y = 0; y < proxy.getHeight(); y++) {
+                for (int x = 0; x < proxy.getWidth(); x++) {
+                    pixel = source.getDataElements(x * step, y * step, pixel);
+                    target.setDataElements(x, y, pixel);
+                }
+            }
+            cachedKey = key;
+            cachedProxy = proxy;
+            cachedStep = step;
+            return proxy;
+        }
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for " + fileLocation);
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(input);
+            int step = subsampling(reader.getWidth(0), reader.getHeight(0), displayWidth, displayHeight);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            BufferedImage proxy = reader.read(0, param);
+            reader.dispose();
+
+            cachedKey = key;
+            cachedProxy = proxy;
+            cachedStep = step;
+            return proxy;
+        }
+    }
+
+    // Kernel applied to the proxy of fileLocation for a display of displayWidth x displayHeight
+    public static BufferedImage preview(String fileLocation, int displayWidth, int displayHeight,
+            float[][] kernelMatrix, float multiplier) throws IOException {
+        BufferedImage proxy;
+        int step;
+        synchronized (Preview.class) {
+            proxy = proxy(fileLocation, displayWidth, displayHeight);
+            step = cachedStep;
+        }
+        return convolve(proxy, step, kernelMatrix, multiplier);
+    }
+
+    // The kernel as it covers the same area of the picture on the proxy. Box kernels keep their
+    // shape with radius / step; other kernels larger than 3x3 have their taps summed into step x step
+    // cells, which keeps the total weight. 3x3 kernels cannot shrink and stay as they are.
+    public static float[][] scaleKernel(float[][] kernelMatrix, int step) {
+        int len = kernelMatrix.length;
+        if (step <= 1 || len <= 3) {
+            return kernelMatrix;
+        }
+        int half = len / 2;
+        int scaledHalf = Math.max(1, Math.round((float) half / step));
+        int scaledLen = 2 * scaledHalf + 1;
+
+        if (Kernels.isBox(kernelMatrix)) {
+            return Kernels.box(scaledHalf);
+        }
+        float[][] scaled = new float[scaledLen][scaledLen];
+        for (int k = 0; k < len; k++) {
+            int sk = cell(k - half, step, scaledHalf);
+            for (int l = 0; l < len; l++) {
+                scaled[sk][cell(l - half, step, scaledHalf)] += kernelMatrix[k][l];
+            }
+        }
+        return scaled;
+    }
+
+    private static int cell(int offset, int step, int scaledHalf) {
+        return Math.min(Math.max(Math.round((float) offset / step), -scaledHalf), scaledHalf) + scaledHalf;
+    }
+
+    // A box keeps its total weight spread over fewer taps of one. Summed cells keep the total
+    // weight by themselves, so the multiplier stays.
+    public static float scaleMultiplier(float[][] kernelMatrix, float[][] scaled, float multiplier) {
+        if (scaled != kernelMatrix && Kernels.isBox(kernelMatrix)) {
+            float total = kernelMatrix[0][0] * kernelMatrix.length * kernelMatrix.length;
+            return multiplier * total / (scaled.length * scaled.length);
+        }
+        return multiplier;
+    }
+
+    // Convolved proxy at about the display size, on the parallel tile scheduler
+    public static BufferedImage convolve(BufferedImage proxy, int step, float[][] kernelMatrix, float multiplier) {
+        float[][] scaled = scaleKernel(kernelMatrix, step);
+        float scaledMultiplier = scaleMultiplier(kernelMatrix, scaled, multiplier);
+
+        int width = proxy.getWidth();
+        int height = proxy.getHeight();
+        int[] source = Convolution.getPixels(proxy);
+        int[] result = new int[width * height];
+        parallel.convolve(source, result, width, height, scaled, scaledMultiplier);
+
+        BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Convolution.setPixels(output, result);
+        return output;
+    }
+}
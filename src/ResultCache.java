@@ -0,0 +1,146 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+// Results keyed by SHA-256 of the source file, the kernel and the multiplier. The memory tier is
+// an LRU bounded in bytes; the optional disk tier keeps lossless PNG copies between runs.
+public class ResultCache {
+
+    private final long maxBytes;
+    private final File directory;
+    private final LinkedHashMap<String, BufferedImage> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits, diskHits, misses;
+
+    // directory == null keeps the cache in memory only
+    public ResultCache(long maxBytes, File directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        if (directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+    public static String key(File source, float[][] kernelMatrix, float multiplier) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // The encoded file, not the decoded pixels, so a hit does not have to decode the image
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream input = new FileInputStream(source)) {
+            for (int read = input.read(buffer); read > 0; read = input.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        int len = kernelMatrix.length;
+        ByteBuffer kernel = ByteBuffer.allocate(4 * (2 + len * len));
+        kernel.putInt(len);
+        for (float[] row : kernelMatrix) {
+            for (float weight : row) {
+                kernel.putInt(Float.floatToIntBits(weight));
+            }
+        }
+        kernel.putInt(Float.floatToIntBits(multiplier));
+        digest.update(kernel.array());
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // Null on a miss, a disk hit is moved into the memory tier
+    public synchronized BufferedImage get(String key) {
+        BufferedImage image = entries.get(key);
+        if (image != null) {
+            hits++;
+            return image;
+        }
+        if (directory != null) {
+            File file = new File(directory, key + ".png");
+            if (file.isFile()) {
+                try {
+                    image = ImageIO.read(file);
+                } catch (IOException e) {
+                    System.out.println("Could not read cached result " + file + ": " + e.getMessage());
+                }
+                if (image != null) {
+                    diskHits++;
+                    store(key, image);
+                    return image;
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String key, BufferedImage image) {
+        store(key, image);
+        if (directory != null) {
+            File file = new File(directory, key + ".png");
+            try {
+                ImageIO.write(image, "png", file);
+            } catch (IOException e) {
+                System.out.println("Could not write cached result " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void store(String key, BufferedImage image) {
+        BufferedImage old = entries.put(key, image);
+        if (old != null) {
+            bytes -= size(old);
+        }
+        bytes += size(image);
+
+        // Least recently used first, a single entry larger than the bound is not kept
+        Iterator<Map.Entry<String, BufferedImage>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= size(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long size(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Cache: " + hits + " hits, " + diskHits + " disk hits, " + misses + " misses, " + entries.size()
+                + " entries (" + bytes / (1024 * 1024) + " MB)";
+    }
+}
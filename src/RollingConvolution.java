@@ -0,0 +1,129 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// Low-memory engine: the result is written back into the raster of the decoded image, so no
+// second full-size image or int[] copy exists. Every worker convolves its own strip of rows and
+// keeps only a ring of bandRows + len - 1 source rows, plus copies of the halo rows its
+// neighbours overwrite.
+public class RollingConvolution {
+
+    public static final int DEFAULT_BAND_ROWS = 32;
+
+    // java RollingConvolution <image> [kernel]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: RollingConvolution <image> [edge_detection|sharpen|box_blur|emboss]");
+            return;
+        }
+        String kernel = args.length > 1 ? args[1] : "edge_detection";
+        convolution(args[0], Kernels.getKernelMatrix(kernel), Kernels.getMultiplier(kernel));
+    }
+
+    public static void convolution(String fileLocation, float[][] kernelMatrix, float multiplier) throws IOException {
+
+        Metrics metrics = new Metrics("rolling");
+        long t = System.nanoTime();
+        BufferedImage img = RawImage.read(new File(fileLocation));
+        t = metrics.record("decode", t);
+
+        convolve(img, kernelMatrix, multiplier, DEFAULT_BAND_ROWS);
+        metrics.record("compute", t);
+        metrics.addPixels((long) img.getWidth() * img.getHeight());
+
+        Main.finishSeq(img, metrics);
+    }
+
+    // Convolves image in place, with the same result as Convolution.convolve into a new image
+    public static void convolve(BufferedImage image, float[][] kernelMatrix, float multiplier, int bandRows) {
+        int height = image.getHeight();
+        KernelPlan plan = KernelPlan.of(kernelMatrix, multiplier);
+        int half = plan.getSize() / 2;
+        TileScheduler scheduler = parallel.getScheduler();
+
+        // One strip per worker, but not thinner than a band
+        int strips = Math.max(1, Math.min(scheduler.getParallelism(), height / Math.max(bandRows, half)));
+        int[] first = new int[strips + 1];
+        for (int s = 0; s <= strips; s++) {
+            first[s] = (int) ((long) height * s / strips);
+        }
+
+        // Halo rows of every strip are saved before any strip writes its result
+        int[][] above = new int[strips][];
+        int[][] below = new int[strips][];
+        for (int s = 0; s < strips; s++) {
+            above[s] = readRows(image, first[s] - half, half);
+            below[s] = readRows(image, first[s + 1], half);
+        }
+
+        if (strips == 1) {
+            convolveStrip(image, plan, bandRows, 0, height, above[0], below[0]);
+            return;
+        }
+        scheduler.forEach(strips, s -> convolveStrip(image, plan, bandRows, first[s], first[s + 1], above[s],
+                below[s]));
+    }
+
+    // Rows [a, b) of the image. Source row r lives in ring row r mod ringRows, so the ring is a
+    // small image whose vertical wrap-around is exactly the rows the band needs.
+    private static void convolveStrip(BufferedImage image, KernelPlan plan, int bandRows, int a, int b,
+            int[] above, int[] below) {
+
+        int width = image.getWidth();
+        int half = plan.getSize() / 2;
+        bandRows = Math.max(1, Math.min(bandRows, b - a));
+        int ringRows = bandRows + 2 * half;
+        int[] ring = new int[ringRows * width];
+        int[] result = new int[ringRows * width];
+
+        loadRows(image, a - half, bandRows + 2 * half, a, b, above, below, ring, ringRows);
+        for (int y = a; y < b; y += bandRows) {
+            int y1 = Math.min(y + bandRows, b);
+            if (y > a) {
+                // Rows up to y + half - 1 are already in the ring, they replace rows of earlier bands
+                loadRows(image, y + half, y1 - y, a, b, above, below, ring, ringRows);
+            }
+
+            int slot = y % ringRows;
+            int end = Math.min(slot + (y1 - y), ringRows);
+            Convolution.convolve(ring, result, width, ringRows, plan, 0, slot, width, end);
+            if (end - slot < y1 - y) {
+                Convolution.convolve(ring, result, width, ringRows, plan, 0, 0, width, y1 - y - (end - slot));
+            }
+
+            // The source rows of this band are in the ring, later bands never read them from the image
+            Convolution.setPixels(image, result, slot * width, y, y + (end - slot));
+            if (end - slot < y1 - y) {
+                Convolution.setPixels(image, result, 0, y + (end - slot), y1);
+            }
+        }
+    }
+
+    // Source rows [from, from + count) into the ring, rows outside [a, b) from the saved halos
+    private static void loadRows(BufferedImage image, int from, int count, int a, int b, int[] above, int[] below,
+            int[] ring, int ringRows) {
+        int width = image.getWidth();
+        int half = above.length / width;
+        for (int r = from; r < from + count; r++) {
+            int offset = Math.floorMod(r, ringRows) * width;
+            if (r < a) {
+                System.arraycopy(above, (r - (a - half)) * width, ring, offset, width);
+            } else if (r >= b) {
+                System.arraycopy(below, (r - b) * width, ring, offset, width);
+            } else {
+                Convolution.getPixels(image, r, r + 1, ring, offset);
+            }
+        }
+    }
+
+    // count rows from row from, wrapped around the image
+    private static int[] readRows(BufferedImage image, int from, int count) {
+        int width = image.getWidth();
+        int[] rows = new int[count * width];
+        for (int r = 0; r < count; r++) {
+            int y = Math.floorMod(from + r, image.getHeight());
+            Convolution.getPixels(image, y, y + 1, rows, r * width);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,360 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Resident HTTP mode: the JVM, the JIT-compiled engines and the pixel buffers stay warm between
+// jobs, so small images do not pay for startup on every run.
+//
+//   POST /convolve?kernel=sharpen[&radius=5][&format=png|jpg]   image bytes in, result bytes out
+//   GET  /metrics                                               latency percentiles, Prometheus text
+public class Server {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    // Latencies of the last requests the percentiles are taken over
+    private static final int LATENCY_WINDOW = 10000;
+
+    // Source and result arrays kept for the next request of the same size
+    private static final int POOLED_BUFFERS = 8;
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long requests, failures;
+    private final List<int[]> buffers = new ArrayList<>();
+    // Phases summed over all requests
+    private final Metrics metrics = new Metrics("server");
+
+    // java Server [port] [address]   loopback only unless an address (e.g. 0.0.0.0) is given
+    // java Server client <url> <image> <kernel> [requests] [concurrency]
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("client")) {
+            if (args.length < 4) {
+                System.out.println("Usage: Server client <url> <image> <kernel> [requests] [concurrency]");
+                return;
+            }
+            client(args[1], args[2], args[3], args.length > 4 ? Integer.parseInt(args[4]) : 100,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 4);
+            return;
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        InetAddress address = args.length > 1 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        new Server(address, port).start();
+        System.out.println("Listening on http://" + address.getHostAddress() + ":" + port
+                + "/convolve?kernel=<name>");
+    }
+
+    // Uploaded images are decoded without any authentication, so only local clients by default
+    public Server(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    public Server(InetAddress address, int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(address, port), 0);
+        executor = newExecutor();
+        http.setExecutor(executor);
+        http.createContext("/convolve", this::convolve);
+        http.createContext("/metrics", this::metrics);
+    }
+
+    public void start() {
+        warmUp();
+        http.start();
+    }
+
+    public void stop() {
+        http.stop(0);
+        executor.shutdown();
+    }
+
+    // A virtual thread per request when the JDK has them (21+), otherwise a cached pool. The
+    // handlers mostly wait on sockets; the convolution itself runs on the shared tile scheduler.
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Every registered kernel through the engines a few times, so the first request finds them
+    // compiled. The 5x5 kernel has fractional taps and is neither box nor separable, so it takes the
+    // float path and makes the engines measure the FFT crossover here instead of on the first large
+    // kernel request.
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        int size = 256;
+        int[] src = new int[size * size];
+        int[] dst = new int[size * size];
+        Random random = new Random(1);
+        for (int p = 0; p < src.length; p++) {
+            src[p] = random.nextInt();
+        }
+        float[][] large = new float[5][5];
+        for (float[] column : large) {
+            Arrays.fill(column, -0.5f);
+        }
+        large[2][2] = 12.5f;
+        parallel.convolve(src, dst, size, size, large, 2);
+        for (int run = 0; run < 20; run++) {
+            for (String name : Kernels.names()) {
+                parallel.convolve(src, dst, size, size, Kernels.getKernelMatrix(name), Kernels.getMultiplier(name));
+            }
+        }
+        System.out.println("Warm-up: " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void convolve(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "POST an image to /convolve?kernel=<name>");
+                return;
+            }
+            Map<String, String> query = query(exchange.getRequestURI());
+            String kernel = query.getOrDefault("kernel", "edge_detection");
+            String format = query.getOrDefault("format", "png");
+
+            float[][] kernelMatrix;
+            float multiplier;
+            if (kernel.equals("box")) {
+                int radius;
+                try {
+                    radius = Math.min(Math.max(Integer.parseInt(query.getOrDefault("radius", "1")), 1), 50);
+                } catch (NumberFormatException e) {
+                    send(exchange, 400, "radius must be a whole number");
+                    return;
+                }
+                kernelMatrix = Kernels.box(radius);
+                multiplier = 1f / (kernelMatrix.length * kernelMatrix.length);
+            } else if (Kernels.get(kernel) != null) {
+                kernelMatrix = Kernels.getKernelMatrix(kernel);
+                multiplier = Kernels.getMultiplier(kernel);
+            } else {
+                send(exchange, 400, "Unknown kernel " + kernel + ", registered: " + Kernels.names());
+                return;
+            }
+
+            long t = System.nanoTime();
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(exchange.getRequestBody().readAllBytes()));
+            t = metrics.record("decode", t);
+            if (image == null) {
+                send(exchange, 400, "Not an image");
+                return;
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+
+            int[] source = take(width * height);
+            Convolution.getPixels(image, source);
+            int[] result = take(width * height);
+            t = metrics.record("unpack", t);
+            if (Grayscale.isGray(image)) {
+                Grayscale.convolve(source, result, width, height, kernelMatrix, multiplier, parallel::convolve);
+            } else {
+                parallel.convolve(source, result, width, height, kernelMatrix, multiplier);
+            }
+            t = metrics.record("compute", t);
+            metrics.addPixels((long) width * height);
+
+            int type = image.getType() != BufferedImage.TYPE_CUSTOM ? image.getType()
+                    : image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            // Int rasters are encoded straight from the result array, other types get a copy
+            BufferedImage output;
+            if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+                output = wrap(result, width, height, type == BufferedImage.TYPE_INT_ARGB);
+            } else {
+                output = new BufferedImage(width, height, type);
+                Convolution.setPixels(output, result);
+            }
+            give(source);
+            t = metrics.record("pack", t);
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            boolean written = ImageIO.write(output, format, encoded);
+            give(result);
+            if (!written) {
+                send(exchange, 400, "Cannot encode " + format);
+                return;
+            }
+            metrics.record("encode", t);
+
+            exchange.getResponseHeaders().set("Content-Type", "image/" + (format.equals("jpg") ? "jpeg" : format));
+            exchange.sendResponseHeaders(200, encoded.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                encoded.writeTo(body);
+            }
+            record(System.nanoTime() - start, true);
+            System.out.printf(Locale.ROOT, "%s %dx%d %.2f ms%n", kernel, width, height,
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException | RuntimeException e) {
+            record(System.nanoTime() - start, false);
+            // Once the headers are out the status cannot change any more, the client sees a cut body
+            if (exchange.getResponseCode() == -1) {
+                send(exchange, 500, e.toString());
+            } else {
+                exchange.close();
+            }
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        List<Metrics> ranks = new ArrayList<>();
+        ranks.add(metrics);
+        send(exchange, 200, latencyText() + Metrics.toPrometheus(ranks));
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> values = new HashMap<>();
+        String query = uri.getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    values.put(pair.substring(0, equals), pair.substring(equals + 1));
+                }
+            }
+        }
+        return values;
+    }
+
+    private synchronized void record(long nanos, boolean ok) {
+        latencies[(int) (requests % LATENCY_WINDOW)] = nanos;
+        requests++;
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    // Prometheus summary of the request latency, decode to encode
+    synchronized String latencyText() {
+        long[] window = Arrays.copyOf(latencies, (int) Math.min(requests, LATENCY_WINDOW));
+        Arrays.sort(window);
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP convolution_request_seconds Latency of /convolve over the last requests\n");
+        text.append("# TYPE convolution_request_seconds summary\n");
+        for (double quantile : new double[] { 0.5, 0.9, 0.99, 1 }) {
+            text.append(String.format(Locale.ROOT, "convolution_request_seconds{quantile=\"%s\"} %.6f%n",
+                    quantile == 1 ? "1" : String.valueOf(quantile), percentile(window, quantile) / 1e9));
+        }
+        text.append("convolution_request_seconds_count ").append(requests).append('\n');
+        text.append("convolution_request_failures ").append(failures).append('\n');
+        return text.toString();
+    }
+
+    // Nearest-rank percentile of sorted values
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+    }
+
+    private synchronized int[] take(int size) {
+        for (Iterator<int[]> it = buffers.iterator(); it.hasNext();) {
+            int[] buffer = it.next();
+            if (buffer.length == size) {
+                it.remove();
+                return buffer;
+            }
+        }
+        return new int[size];
+    }
+
+    // TYPE_INT_RGB or TYPE_INT_ARGB image over pixels, no copy
+    private static BufferedImage wrap(int[] pixels, int width, int height, boolean alpha) {
+        DirectColorModel model = alpha ? (DirectColorModel) ColorModel.getRGBdefault()
+                : new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+        return new BufferedImage(model, Raster.createPackedRaster(new DataBufferInt(pixels, width * height), width,
+                height, width, model.getMasks(), null), false, null);
+    }
+
+    // Oldest buffer goes first when the pool is full
+    private synchronized void give(int[] buffer) {
+        if (buffers.size() == POOLED_BUFFERS) {
+            buffers.remove(0);
+        }
+        buffers.add(buffer);
+    }
+
+    // Load generator for localhost: posts the same image requests times from concurrency threads
+    // and prints the latency percentiles seen by the client
+    public static void client(String url, String imagePath, String kernel, int requests, int concurrency)
+            throws Exception {
+        byte[] image = Files.readAllBytes(Paths.get(imagePath));
+        HttpClient client = HttpClient.newHttpClient();
+        URI uri = URI.create(url + (url.endsWith("/convolve") ? "" : "/convolve") + "?kernel=" + kernel);
+        long[] latencies = new long[requests];
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> calls = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            int request = i;
+            calls.add(pool.submit(() -> {
+                long t = System.nanoTime();
+                HttpResponse<byte[]> response = client.send(
+                        HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(image)).build(),
+                        HttpResponse.BodyHandlers.ofByteArray());
+                latencies[request] = System.nanoTime() - t;
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode() + ": "
+                            + new String(response.body(), StandardCharsets.UTF_8).trim());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> call : calls) {
+            call.get();
+        }
+        long time = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf(Locale.ROOT, "%d requests, %.1f requests/s%n", requests, requests * 1e9 / time);
+        System.out.printf(Locale.ROOT, "p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.9) / 1e6,
+                percentile(latencies, 0.99) / 1e6, percentile(latencies, 1) / 1e6);
+    }
+}
@@ -0,0 +1,198 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+// Out-of-core convolution: the image is read and written in horizontal bands, only a rolling
+// window of bandRows + len - 1 source rows is ever in memory. PPM, PGM and RAW files (RawImage)
+// are read and written through memory mappings, other inputs through ImageIO and the output as TIFF.
+public class Streaming {
+
+    public static final int DEFAULT_BAND_ROWS = 512;
+
+    // java Streaming <input> <output.tif|.ppm|.pgm|.raw> [kernel] [bandRows]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: Streaming <input> <output.tif|.ppm|.pgm|.raw> "
+                    + "[edge_detection|sharpen|box_blur|emboss] [bandRows]");
+            return;
+        }
+        String kernel = args.length > 2 ? args[2] : "edge_detection";
+        int bandRows = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BAND_ROWS;
+        convolution(args[0], args[1], Kernels.getKernelMatrix(kernel), Kernels.getMultiplier(kernel), bandRows);
+    }
+
+    public static void convolution(String fileLocation, String outputLocation, float[][] kernelMatrix,
+            float multiplier, int bandRows) throws IOException {
+
+        File outputFile = new File(outputLocation);
+        outputFile.delete();
+
+        // Decode covers reading and unpacking the source rows, encode the band writes
+        Metrics metrics = new Metrics("streaming");
+        long t = System.nanoTime();
+
+        // PPM / PGM / RAW files are mapped directly, other formats go through ImageIO
+        if (RawImage.isRaw(fileLocation)) {
+            try (RawImage input = RawImage.open(new File(fileLocation))) {
+                convolution(input::readRows, input.getWidth(), input.getHeight(), outputLocation, outputFile,
+                        kernelMatrix, multiplier, bandRows, metrics, t);
+            }
+            return;
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(fileLocation))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for " + fileLocation);
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(input);
+
+            // Each call is one setSourceRegion read
+            RowReader rows = (firstRow, count, dst, offset) -> {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, firstRow, reader.getWidth(0), count));
+                int[] pixels = Convolution.getPixels(reader.read(0, param));
+                System.arraycopy(pixels, 0, dst, offset, pixels.length);
+            };
+            convolution(rows, reader.getWidth(0), reader.getHeight(0), outputLocation, outputFile, kernelMatrix,
+                    multiplier, bandRows, metrics, t);
+            reader.dispose();
+        }
+    }
+
+    private interface RowReader {
+        // Rows [firstRow, firstRow + count) of the image as packed pixels
+        void read(int firstRow, int count, int[] dst, int offset) throws IOException;
+    }
+
+    private interface BandWriter {
+        void write(int y, int rows, int[] pixels, int offset) throws IOException;
+    }
+
+    private static void convolution(RowReader source, int width, int height, String outputLocation,
+            File outputFile, float[][] kernelMatrix, float multiplier, int bandRows, Metrics metrics, long t)
+            throws IOException {
+
+        bandRows = Math.max(1, Math.min(bandRows, height));
+
+        if (RawImage.isRaw(outputLocation)) {
+            try (RawImage output = RawImage.create(outputFile, width, height)) {
+                convolution(source, output::writeRows, width, height, kernelMatrix, multiplier, bandRows, metrics,
+                        t);
+            }
+        } else {
+            try (ImageOutputStream output = ImageIO.createImageOutputStream(outputFile)) {
+                ImageWriter writer = writerFor(outputLocation, output);
+                BufferedImage[] band = new BufferedImage[1];
+                int[][] bandPixels = new int[1][];
+
+                // Bands are patched into an empty image of the full size
+                BandWriter bands = (y, rows, pixels, offset) -> {
+                    if (band[0] == null) {
+                        band[0] = new BufferedImage(width, rows, BufferedImage.TYPE_3BYTE_BGR);
+                        writer.prepareWriteEmpty(null, ImageTypeSpecifier.createFromRenderedImage(band[0]), width,
+                                height, null, null, writer.getDefaultWriteParam());
+                        writer.endWriteEmpty();
+                        writer.prepareReplacePixels(0, new Rectangle(0, 0, width, height));
+                    }
+                    // Only the last band can be shorter
+                    if (band[0].getHeight() != rows) {
+                        band[0] = new BufferedImage(width, rows, band[0].getType());
+                    }
+                    if (bandPixels[0] == null || bandPixels[0].length != rows * width) {
+                        bandPixels[0] = new int[rows * width];
+                    }
+                    System.arraycopy(pixels, offset, bandPixels[0], 0, bandPixels[0].length);
+                    Convolution.setPixels(band[0], bandPixels[0]);
+
+                    ImageWriteParam param = writer.getDefaultWriteParam();
+                    param.setDestinationOffset(new Point(0, y));
+                    writer.replacePixels(band[0], param);
+                };
+                convolution(source, bands, width, height, kernelMatrix, multiplier, bandRows, metrics, t);
+                writer.endReplacePixels();
+                writer.dispose();
+            }
+        }
+
+        System.out.println("Time elapsed: " + metrics.total() / 1000000 + " ms");
+        metrics.print();
+        Metrics.setLast(metrics);
+        Metrics.export(metrics);
+        System.out.println("Result saved to " + outputLocation);
+    }
+
+    private static void convolution(RowReader source, BandWriter output, int width, int height,
+            float[][] kernelMatrix, float multiplier, int bandRows, Metrics metrics, long t) throws IOException {
+
+        KernelPlan plan = KernelPlan.of(kernelMatrix, multiplier);
+        int len = plan.getSize();
+        int half = len / 2;
+
+        // Rolling window: rows [y - half, y + bandRows + half) of the source for the band at y
+        int windowRows = bandRows + 2 * half;
+        int[] window = new int[windowRows * width];
+        int[] result = new int[windowRows * width];
+
+        readRows(source, -half, bandRows + 2 * half, width, height, window, 0);
+        t = metrics.record("decode", t);
+
+        for (int y = 0; y < height; y += bandRows) {
+            int rows = Math.min(bandRows, height - y);
+            if (y > 0) {
+                // The last 2 * half rows of the previous window are the top halo of this band
+                System.arraycopy(window, bandRows * width, window, 0, 2 * half * width);
+                readRows(source, y + half, rows, width, height, window, 2 * half * width);
+                t = metrics.record("decode", t);
+            }
+
+            parallel.getScheduler().run(width, rows, len, (x0, y0, x1, y1) -> Convolution.convolve(window, result,
+                    width, windowRows, plan, x0, y0 + half, x1, y1 + half));
+            t = metrics.record("compute", t);
+            metrics.addPixels((long) width * rows);
+
+            output.write(y, rows, result, half * width);
+            t = metrics.record("encode", t);
+        }
+    }
+
+    // Bands are patched into an empty image, which needs a writer with replacePixels (TIFF)
+    private static ImageWriter writerFor(String outputLocation, ImageOutputStream output) throws IOException {
+        String suffix = outputLocation.substring(outputLocation.lastIndexOf('.') + 1);
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(suffix);
+        while (writers.hasNext()) {
+            ImageWriter writer = writers.next();
+            writer.setOutput(output);
+            if (writer.canWriteEmpty()) {
+                return writer;
+            }
+            writer.dispose();
+        }
+        throw new IOException("Streaming output needs a format that can be written in bands, e.g. .tif or .ppm");
+    }
+
+    // Reads count source rows starting at firstRow into dst, rows outside the image wrap around.
+    // Each contiguous run is one read.
+    private static void readRows(RowReader source, int firstRow, int count, int width, int height, int[] dst,
+            int offset) throws IOException {
+        int r = 0;
+        while (r < count) {
+            int row = Math.floorMod(firstRow + r, height);
+            int run = Math.min(count - r, height - row);
+            source.read(row, run, dst, offset + r * width);
+            r += run;
+        }
+    }
+}
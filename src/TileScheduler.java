@@ -0,0 +1,105 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+public class TileScheduler {
+
+    public interface TileTask {
+        void run(int x0, int y0, int x1, int y1);
+    }
+
+    // Source footprint plus output of one tile should stay within half of a typical L2 cache
+    private static final int CACHE_BYTES = 128 * 1024;
+    private static final int MAX_TILE_WIDTH = 512;
+
+    private final ForkJoinPool pool;
+
+    public TileScheduler(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // Splits the image into cache sized tiles in row-major order and runs them on the pool.
+    // Tiles are split recursively, so idle workers steal the remaining halves from busy ones.
+    public void run(int width, int height, int kernelSize, TileTask task) {
+        int tileWidth = Math.min(width, MAX_TILE_WIDTH);
+        int tileHeight = CACHE_BYTES / 4 / (tileWidth + kernelSize - 1) - (kernelSize - 1);
+        // At least four kernel heights, so the halo rows stay under a quarter of the work
+        tileHeight = Math.min(Math.max(tileHeight / 2, 4 * kernelSize), height);
+
+        int tilesX = (width + tileWidth - 1) / tileWidth;
+        int tilesY = (height + tileHeight - 1) / tileHeight;
+
+        pool.invoke(new Tiles(task, width, height, tileWidth, tileHeight, tilesX, 0, tilesX * tilesY));
+    }
+
+    // Runs task.accept(0) .. task.accept(count - 1) on the pool, for work that is not split in tiles
+    public void forEach(int count, IntConsumer task) {
+        pool.invoke(new Parts(task, 0, count));
+    }
+
+    private static class Parts extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer task;
+        private final int first, last;
+
+        Parts(IntConsumer task, int first, int last) {
+            this.task = task;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > 1) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new Parts(task, first, middle), new Parts(task, middle, last));
+            } else if (last > first) {
+                task.accept(first);
+            }
+        }
+    }
+
+    private static class Tiles extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TileTask task;
+        private final int width, height, tileWidth, tileHeight, tilesX;
+        private final int first, last;
+
+        Tiles(TileTask task, int width, int height, int tileWidth, int tileHeight, int tilesX, int first,
+                int last) {
+            this.task = task;
+            this.width = width;
+            this.height = height;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.tilesX = tilesX;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > 1) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new Tiles(task, width, height, tileWidth, tileHeight, tilesX, first, middle),
+                        new Tiles(task, width, height, tileWidth, tileHeight, tilesX, middle, last));
+                return;
+            }
+            int x0 = (first % tilesX) * tileWidth;
+            int y0 = (first / tilesX) * tileHeight;
+            task.run(x0, y0, Math.min(x0 + tileWidth, width), Math.min(y0 + tileHeight, height));
+        }
+    }
+}
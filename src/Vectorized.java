@@ -0,0 +1,85 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+public class Vectorized {
+
+    // VectorConvolution.convolve with a KernelPlan, null when the SIMD engine cannot be used
+    private static final MethodHandle VECTOR = findVectorEngine();
+
+    // Needs src/vector compiled (see README) and jdk.incubator.vector resolved with --add-modules,
+    // the rest of the tree builds and runs without either
+    public static final boolean AVAILABLE = VECTOR != null;
+
+    private static MethodHandle findVectorEngine() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup().findStatic(Class.forName("VectorConvolution"), "convolve",
+                    MethodType.methodType(void.class, int[].class, int[].class, int.class, int.class,
+                            KernelPlan.class, int.class, int.class, int.class, int.class));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public static void convolution(String fileLocation, float[][] kernelMatrix, float multiplier) throws IOException {
+
+        Metrics metrics = new Metrics("vector");
+        long t = System.nanoTime();
+        BufferedImage img1 = RawImage.read(new File(fileLocation));
+        t = metrics.record("decode", t);
+        int width = img1.getWidth();
+        int height = img1.getHeight();
+
+        BufferedImage img2 = new BufferedImage(width, height, img1.getType());
+
+        if (!AVAILABLE) {
+            System.out.println("Vector engine not available, using the scalar engine");
+        }
+
+        int[] source = Convolution.getPixels(img1);
+        int[] result = new int[width * height];
+        t = metrics.record("unpack", t);
+
+        if (Grayscale.isGray(img1)) {
+            Grayscale.convolve(source, result, width, height, kernelMatrix, multiplier,
+                    (src, dst, w, h, kernel, m) -> convolve(src, dst, w, h, kernel, m, 0, 0, w, h));
+        } else {
+            convolve(source, result, width, height, kernelMatrix, multiplier, 0, 0, width, height);
+        }
+        t = metrics.record("compute", t);
+        metrics.addPixels((long) width * height);
+
+        Convolution.setPixels(img2, result);
+        metrics.record("pack", t);
+
+        Main.finishSeq(img2, metrics);
+    }
+
+    // SIMD engine when the module is present, scalar engine otherwise
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier, int x0, int y0, int x1, int y1) {
+        convolve(src, dst, width, height, KernelPlan.of(kernelMatrix, multiplier), x0, y0, x1, y1);
+    }
+
+    // Callers that split an image in bands resolve the plan once and pass it to every band
+    public static void convolve(int[] src, int[] dst, int width, int height, KernelPlan plan, int x0, int y0,
+            int x1, int y1) {
+        if (VECTOR == null) {
+            Convolution.convolve(src, dst, width, height, plan, x0, y0, x1, y1);
+            return;
+        }
+        try {
+            VECTOR.invokeExact(src, dst, width, height, plan, x0, y0, x1, y1);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,72 +1,58 @@
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
 
 public class parallel {
-    public static void convolution(String fileLocation, float[][] kernelMatrix, float multiplier) throws IOException {
-
-        int len = kernelMatrix.length;
-
-        BufferedImage img1 = ImageIO.read(new File(fileLocation));
 
-        int width = img1.getWidth();
-        int height = img1.getHeight();
+    private static TileScheduler scheduler = new TileScheduler(Runtime.getRuntime().availableProcessors());
 
-        BufferedImage img2 = new BufferedImage(width, height, img1.getType());
+    // Number of worker threads used by every following convolution. The old pool is not shut down,
+    // a caller may have just got it from getScheduler; its daemon workers exit once it is idle.
+    public static synchronized void setParallelism(int numThreads) {
+        if (numThreads != scheduler.getParallelism()) {
+            scheduler = new TileScheduler(numThreads);
+        }
+    }
 
-        int numThreads = Runtime.getRuntime().availableProcessors();
+    public static synchronized TileScheduler getScheduler() {
+        return scheduler;
+    }
 
-        Thread[] threads = new Thread[numThreads];
-        long start = System.currentTimeMillis();
+    public static void convolution(String fileLocation, float[][] kernelMatrix, float multiplier) throws IOException {
 
-        for (int t = 0; t < numThreads; t++) {
-            final int threadId = t;
-            threads[t] = new Thread(() -> {
-                for (int i = threadId; i < width; i += numThreads) {
+        Metrics metrics = new Metrics("parallel");
+        long t = System.nanoTime();
+        BufferedImage img1 = RawImage.read(new File(fileLocation));
+        t = metrics.record("decode", t);
 
-                    for (int j = 0; j < height; j++) {
-                        float oldRed = 0f;
-                        float oldGreen = 0f;
-                        float oldBlue = 0f;
+        int width = img1.getWidth();
+        int height = img1.getHeight();
 
-                        for (int k = 0; k < len; k++) {
+        BufferedImage img2 = new BufferedImage(width, height, img1.getType());
 
-                            for (int l = 0; l < len; l++) {
-                                int w = (i - len / 2 + k + width) % width;
-                                int h = (j - len / 2 + l + height) % height;
+        int[] source = Convolution.getPixels(img1);
+        int[] result = new int[width * height];
+        t = metrics.record("unpack", t);
 
-                                int rgbTotal = img1.getRGB(w, h);
-                                int rgbRed = (rgbTotal >> 16) & 0xff;
-                                int rgbGreen = (rgbTotal >> 8) & 0xff;
-                                int rgbBlue = (rgbTotal) & 0xff;
+        if (Grayscale.isGray(img1)) {
+            Grayscale.convolve(source, result, width, height, kernelMatrix, multiplier, parallel::convolve);
+        } else {
+            convolve(source, result, width, height, kernelMatrix, multiplier);
+        }
+        t = metrics.record("compute", t);
+        metrics.addPixels((long) width * height);
 
-                                oldRed += (rgbRed * kernelMatrix[k][l]);
-                                oldGreen += (rgbGreen * kernelMatrix[k][l]);
-                                oldBlue += (rgbBlue * kernelMatrix[k][l]);
-                            }
-                        }
-                        int red = Math.min(Math.max((int) (oldRed * multiplier), 0), 255);
-                        int green = Math.min(Math.max((int) (oldGreen * multiplier), 0), 255);
-                        int blue = Math.min(Math.max((int) (oldBlue * multiplier), 0), 255);
+        Convolution.setPixels(img2, result);
+        metrics.record("pack", t);
+        Main.finishSeq(img2, metrics);
+    }
 
-                        Color color = new Color(red, green, blue);
-                        img2.setRGB(i, j, color.getRGB());
-                    }
-                }
-            });
-            threads[t].start();
-        }
-        for (int t = 0; t < numThreads; t++) {
-            try {
-                threads[t].join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        long finish = System.currentTimeMillis();
-        long time = finish - start;
-        Main.finishSeq(img2, time);
+    // Compute part of convolution, without reading or writing the image. The plan is looked up once
+    // for all tiles.
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier) {
+        KernelPlan plan = KernelPlan.of(kernelMatrix, multiplier);
+        getScheduler().run(width, height, kernelMatrix.length, (x0, y0, x1, y1) -> Convolution.convolve(src, dst,
+                width, height, plan, x0, y0, x1, y1));
     }
 }
@@ -0,0 +1,374 @@
+import java.util.Arrays;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Needs --add-modules jdk.incubator.vector to compile and run, so it is built on its own from
+// src/vector and Vectorized finds it at run time
+public class VectorConvolution {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    // Unpacked planes of one block stay in L2
+    private static final int BLOCK_WIDTH = 512;
+    private static final int BLOCK_HEIGHT = 32;
+
+    // Same regions, wrap-around and results as Convolution.convolve, many output pixels per instruction
+    public static void convolve(int[] src, int[] dst, int width, int height, float[][] kernelMatrix,
+            float multiplier, int x0, int y0, int x1, int y1) {
+        convolve(src, dst, width, height, KernelPlan.of(kernelMatrix, multiplier), x0, y0, x1, y1);
+    }
+
+    public static void convolve(int[] src, int[] dst, int width, int height, KernelPlan plan, int x0, int y0,
+            int x1, int y1) {
+
+        // Box kernels keep their running sums, larger dense float kernels may be cheaper through the FFT
+        if (plan.box || (plan.len > 3 && plan.separated == null && !plan.exact)) {
+            Convolution.convolve(src, dst, width, height, plan, x0, y0, x1, y1);
+            return;
+        }
+
+        for (int by = y0; by < y1; by += BLOCK_HEIGHT) {
+            for (int bx = x0; bx < x1; bx += BLOCK_WIDTH) {
+                convolveBlock(src, dst, width, height, plan, bx, by, Math.min(bx + BLOCK_WIDTH, x1),
+                        Math.min(by + BLOCK_HEIGHT, y1));
+            }
+        }
+    }
+
+    private static void convolveBlock(int[] src, int[] dst, int width, int height, KernelPlan plan, int x0, int y0,
+            int x1, int y1) {
+
+        if (plan.separated != null) {
+            convolveSeparable(src, dst, width, height, plan.separated[0], plan.separated[1], plan.multiplier, x0, y0,
+                    x1, y1);
+        } else if (plan.fixed != null) {
+            convolveFixed(src, dst, width, height, plan.fixed, x0, y0, x1, y1);
+        } else {
+            convolveDirect(src, dst, width, height, plan, x0, y0, x1, y1);
+        }
+    }
+
+    // Integer taps in int lanes, zero taps skipped, same output as FixedPointConvolution
+    public static void convolveFixed(int[] src, int[] dst, int width, int height, FixedPointConvolution.Plan plan,
+            int x0, int y0, int x1, int y1) {
+
+        int len = plan.len;
+        int regionWidth = x1 - x0;
+        int paddedWidth = regionWidth + len - 1;
+        int rowCount = y1 - y0 + len - 1;
+
+        int[] red = new int[rowCount * paddedWidth];
+        int[] green = new int[rowCount * paddedWidth];
+        int[] blue = new int[rowCount * paddedWidth];
+        unpack(src, width, height, x0 - len / 2, y0 - len / 2, paddedWidth, rowCount, red, green, blue);
+
+        int[] sumRed = new int[regionWidth];
+        int[] sumGreen = new int[regionWidth];
+        int[] sumBlue = new int[regionWidth];
+
+        for (int j = y0; j < y1; j++) {
+            int top = (j - y0) * paddedWidth;
+            Arrays.fill(sumRed, 0);
+            Arrays.fill(sumGreen, 0);
+            Arrays.fill(sumBlue, 0);
+            for (int t = 0; t < plan.weights.length; t++) {
+                int p = top + plan.dy[t] * paddedWidth + plan.dx[t];
+                if (plan.dx2[t] < 0) {
+                    accumulate(red, p, plan.weights[t], sumRed);
+                    accumulate(green, p, plan.weights[t], sumGreen);
+                    accumulate(blue, p, plan.weights[t], sumBlue);
+                } else {
+                    int p2 = top + plan.dy2[t] * paddedWidth + plan.dx2[t];
+                    accumulate(red, p, p2, plan.weights[t], sumRed);
+                    accumulate(green, p, p2, plan.weights[t], sumGreen);
+                    accumulate(blue, p, p2, plan.weights[t], sumBlue);
+                }
+            }
+            pack(sumRed, sumGreen, sumBlue, plan.scale, plan.shift, src, dst, j * width + x0);
+        }
+    }
+
+    public static void convolveDirect(int[] src, int[] dst, int width, int height, KernelPlan plan, int x0, int y0,
+            int x1, int y1) {
+
+        int len = plan.len;
+        int regionWidth = x1 - x0;
+        int paddedWidth = regionWidth + len - 1;
+        int rowCount = y1 - y0 + len - 1;
+
+        float[] red = new float[rowCount * paddedWidth];
+        float[] green = new float[rowCount * paddedWidth];
+        float[] blue = new float[rowCount * paddedWidth];
+        unpack(src, width, height, x0 - len / 2, y0 - len / 2, paddedWidth, rowCount, red, green, blue);
+
+        float[] sumRed = new float[regionWidth];
+        float[] sumGreen = new float[regionWidth];
+        float[] sumBlue = new float[regionWidth];
+
+        // Taps outside, pixels inside: C2 in JDK 17 boxes vectors carried through a variable-length
+        // inner loop, so the sums live in arrays instead. Each lane still adds the products in the
+        // scalar order and rounds exactly like Convolution.convolveDirect.
+        for (int j = y0; j < y1; j++) {
+            int top = (j - y0) * paddedWidth;
+            Arrays.fill(sumRed, 0f);
+            Arrays.fill(sumGreen, 0f);
+            Arrays.fill(sumBlue, 0f);
+            for (int t = 0; t < plan.pairs; t++) {
+                int p = top + plan.dy[t] * paddedWidth + plan.dx[t];
+                int p2 = top + plan.dy2[t] * paddedWidth + plan.dx2[t];
+                accumulate(red, p, p2, plan.weights[t], sumRed);
+                accumulate(green, p, p2, plan.weights[t], sumGreen);
+                accumulate(blue, p, p2, plan.weights[t], sumBlue);
+            }
+            for (int t = plan.pairs; t < plan.weights.length; t++) {
+                int p = top + plan.dy[t] * paddedWidth + plan.dx[t];
+                accumulate(red, p, plan.weights[t], sumRed);
+                accumulate(green, p, plan.weights[t], sumGreen);
+                accumulate(blue, p, plan.weights[t], sumBlue);
+            }
+            pack(sumRed, sumGreen, sumBlue, plan.multiplier, src, dst, j * width + x0);
+        }
+    }
+
+    public static void convolveSeparable(int[] src, int[] dst, int width, int height, float[] xWeights,
+            float[] yWeights, float multiplier, int x0, int y0, int x1, int y1) {
+
+        int len = xWeights.length;
+        int regionWidth = x1 - x0;
+        int paddedWidth = regionWidth + len - 1;
+        int rowCount = y1 - y0 + len - 1;
+
+        float[] red = new float[rowCount * paddedWidth];
+        float[] green = new float[rowCount * paddedWidth];
+        float[] blue = new float[rowCount * paddedWidth];
+        unpack(src, width, height, x0 - len / 2, y0 - len / 2, paddedWidth, rowCount, red, green, blue);
+
+        float[] sumRed = new float[regionWidth];
+        float[] sumGreen = new float[regionWidth];
+        float[] sumBlue = new float[regionWidth];
+
+        // Horizontal pass, written back over the unpacked rows (each row only reads ahead of itself)
+        for (int r = 0; r < rowCount; r++) {
+            int row = r * paddedWidth;
+            Arrays.fill(sumRed, 0f);
+            Arrays.fill(sumGreen, 0f);
+            Arrays.fill(sumBlue, 0f);
+            for (int k = 0; k < len; k++) {
+                accumulate(red, row + k, xWeights[k], sumRed);
+                accumulate(green, row + k, xWeights[k], sumGreen);
+                accumulate(blue, row + k, xWeights[k], sumBlue);
+            }
+            System.arraycopy(sumRed, 0, red, row, regionWidth);
+            System.arraycopy(sumGreen, 0, green, row, regionWidth);
+            System.arraycopy(sumBlue, 0, blue, row, regionWidth);
+        }
+
+        // Vertical pass
+        for (int j = y0; j < y1; j++) {
+            int top = (j - y0) * paddedWidth;
+            Arrays.fill(sumRed, 0f);
+            Arrays.fill(sumGreen, 0f);
+            Arrays.fill(sumBlue, 0f);
+            for (int l = 0; l < len; l++) {
+                accumulate(red, top + l * paddedWidth, yWeights[l], sumRed);
+                accumulate(green, top + l * paddedWidth, yWeights[l], sumGreen);
+                accumulate(blue, top + l * paddedWidth, yWeights[l], sumBlue);
+            }
+            pack(sumRed, sumGreen, sumBlue, multiplier, src, dst, j * width + x0);
+        }
+    }
+
+    // sum[i] += plane[offset + i] * weight, multiply then add so lanes round like the scalar loops
+    private static void accumulate(float[] plane, int offset, float weight, float[] sum) {
+        int bound = SPECIES.loopBound(sum.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, plane, offset + i)
+                    .mul(weight)
+                    .add(FloatVector.fromArray(SPECIES, sum, i))
+                    .intoArray(sum, i);
+        }
+        for (; i < sum.length; i++) {
+            sum[i] += plane[offset + i] * weight;
+        }
+    }
+
+    // sum[i] += (plane[offset + i] + plane[offset2 + i]) * weight, the planes hold whole channel
+    // values so the addition is exact
+    private static void accumulate(float[] plane, int offset, int offset2, float weight, float[] sum) {
+        int bound = SPECIES.loopBound(sum.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, plane, offset + i)
+                    .add(FloatVector.fromArray(SPECIES, plane, offset2 + i))
+                    .mul(weight)
+                    .add(FloatVector.fromArray(SPECIES, sum, i))
+                    .intoArray(sum, i);
+        }
+        for (; i < sum.length; i++) {
+            sum[i] += (plane[offset + i] + plane[offset2 + i]) * weight;
+        }
+    }
+
+    private static void accumulate(int[] plane, int offset, int weight, int[] sum) {
+        int bound = INTS.loopBound(sum.length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector.fromArray(INTS, plane, offset + i)
+                    .mul(weight)
+                    .add(IntVector.fromArray(INTS, sum, i))
+                    .intoArray(sum, i);
+        }
+        for (; i < sum.length; i++) {
+            sum[i] += plane[offset + i] * weight;
+        }
+    }
+
+    private static void accumulate(int[] plane, int offset, int offset2, int weight, int[] sum) {
+        int bound = INTS.loopBound(sum.length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector.fromArray(INTS, plane, offset + i)
+                    .add(IntVector.fromArray(INTS, plane, offset2 + i))
+                    .mul(weight)
+                    .add(IntVector.fromArray(INTS, sum, i))
+                    .intoArray(sum, i);
+        }
+        for (; i < sum.length; i++) {
+            sum[i] += (plane[offset + i] + plane[offset2 + i]) * weight;
+        }
+    }
+
+    // Planar int copy of the wrapped source window, like the float version below
+    private static void unpack(int[] src, int width, int height, int left, int top, int paddedWidth, int rowCount,
+            int[] red, int[] green, int[] blue) {
+        int[] columns = new int[paddedWidth];
+        for (int c = 0; c < paddedWidth; c++) {
+            columns[c] = Math.floorMod(left + c, width);
+        }
+        int first = Math.min(Math.max(-left, 0), paddedWidth);
+        int last = Math.max(Math.min(width - left, paddedWidth), first);
+        int bound = first + INTS.loopBound(last - first);
+
+        for (int r = 0; r < rowCount; r++) {
+            int row = Math.floorMod(top + r, height) * width;
+            int t = r * paddedWidth;
+            int c = 0;
+            for (; c < first; c++) {
+                unpackPixel(src[row + columns[c]], red, green, blue, t + c);
+            }
+            for (; c < bound; c += INTS.length()) {
+                IntVector rgb = IntVector.fromArray(INTS, src, row + left + c);
+                rgb.lanewise(VectorOperators.LSHR, 16).and(0xff).intoArray(red, t + c);
+                rgb.lanewise(VectorOperators.LSHR, 8).and(0xff).intoArray(green, t + c);
+                rgb.and(0xff).intoArray(blue, t + c);
+            }
+            for (; c < paddedWidth; c++) {
+                unpackPixel(src[row + columns[c]], red, green, blue, t + c);
+            }
+        }
+    }
+
+    private static void unpackPixel(int rgb, int[] red, int[] green, int[] blue, int p) {
+        red[p] = (rgb >> 16) & 0xff;
+        green[p] = (rgb >> 8) & 0xff;
+        blue[p] = rgb & 0xff;
+    }
+
+    // Planar float copy of the wrapped source window starting at (left, top)
+    private static void unpack(int[] src, int width, int height, int left, int top, int paddedWidth, int rowCount,
+            float[] red, float[] green, float[] blue) {
+        int[] columns = new int[paddedWidth];
+        for (int c = 0; c < paddedWidth; c++) {
+            columns[c] = Math.floorMod(left + c, width);
+        }
+        // Columns that do not wrap are contiguous in src and unpack a vector at a time
+        int first = Math.min(Math.max(-left, 0), paddedWidth);
+        int last = Math.max(Math.min(width - left, paddedWidth), first);
+        int bound = first + INTS.loopBound(last - first);
+
+        for (int r = 0; r < rowCount; r++) {
+            int row = Math.floorMod(top + r, height) * width;
+            int t = r * paddedWidth;
+            int c = 0;
+            for (; c < first; c++) {
+                unpackPixel(src[row + columns[c]], red, green, blue, t + c);
+            }
+            for (; c < bound; c += INTS.length()) {
+                IntVector rgb = IntVector.fromArray(INTS, src, row + left + c);
+                toFloat(rgb.lanewise(VectorOperators.LSHR, 16).and(0xff)).intoArray(red, t + c);
+                toFloat(rgb.lanewise(VectorOperators.LSHR, 8).and(0xff)).intoArray(green, t + c);
+                toFloat(rgb.and(0xff)).intoArray(blue, t + c);
+            }
+            for (; c < paddedWidth; c++) {
+                unpackPixel(src[row + columns[c]], red, green, blue, t + c);
+            }
+        }
+    }
+
+    private static void unpackPixel(int rgb, float[] red, float[] green, float[] blue, int p) {
+        red[p] = (rgb >> 16) & 0xff;
+        green[p] = (rgb >> 8) & 0xff;
+        blue[p] = rgb & 0xff;
+    }
+
+    // Alpha comes from the source pixel at the same offset
+    private static void pack(float[] red, float[] green, float[] blue, float multiplier, int[] src, int[] dst,
+            int offset) {
+        int bound = SPECIES.loopBound(red.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector r = clamp(FloatVector.fromArray(SPECIES, red, i).mul(multiplier));
+            IntVector g = clamp(FloatVector.fromArray(SPECIES, green, i).mul(multiplier));
+            IntVector b = clamp(FloatVector.fromArray(SPECIES, blue, i).mul(multiplier));
+            r.lanewise(VectorOperators.LSHL, 16)
+                    .or(g.lanewise(VectorOperators.LSHL, 8))
+                    .or(b)
+                    .or(IntVector.fromArray(INTS, src, offset + i).and(0xff000000))
+                    .intoArray(dst, offset + i);
+        }
+        for (; i < red.length; i++) {
+            dst[offset + i] = Convolution.pixel(src[offset + i], red[i], green[i], blue[i], multiplier);
+        }
+    }
+
+    // (sum * scale) >> shift, clamped like FixedPointConvolution.channel
+    private static void pack(int[] red, int[] green, int[] blue, int scale, int shift, int[] src, int[] dst,
+            int offset) {
+        int bound = INTS.loopBound(red.length);
+        int i = 0;
+        for (; i < bound; i += INTS.length()) {
+            IntVector r = scale(IntVector.fromArray(INTS, red, i), scale, shift);
+            IntVector g = scale(IntVector.fromArray(INTS, green, i), scale, shift);
+            IntVector b = scale(IntVector.fromArray(INTS, blue, i), scale, shift);
+            r.lanewise(VectorOperators.LSHL, 16)
+                    .or(g.lanewise(VectorOperators.LSHL, 8))
+                    .or(b)
+                    .or(IntVector.fromArray(INTS, src, offset + i).and(0xff000000))
+                    .intoArray(dst, offset + i);
+        }
+        for (; i < red.length; i++) {
+            dst[offset + i] = (src[offset + i] & 0xff000000) | Math.min(Math.max((red[i] * scale) >> shift, 0), 255) << 16
+                    | Math.min(Math.max((green[i] * scale) >> shift, 0), 255) << 8
+                    | Math.min(Math.max((blue[i] * scale) >> shift, 0), 255);
+        }
+    }
+
+    private static IntVector scale(IntVector sum, int scale, int shift) {
+        return sum.mul(scale).lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+    }
+
+    private static FloatVector toFloat(IntVector value) {
+        return (FloatVector) value.convert(VectorOperators.I2F, 0);
+    }
+
+    // F2I truncates like an (int) cast
+    private static IntVector clamp(FloatVector value) {
+        IntVector v = (IntVector) value.convert(VectorOperators.F2I, 0);
+        return v.max(0).min(255);
+    }
+}